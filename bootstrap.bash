@@ -1,5 +1,10 @@
-rm -rf build
-javac -d build/bootstrap.classes --source-path core/src/main/java $(find core/src/main/java/job -name "*.java")
-jar cf bootstrap.jar -C build/bootstrap.classes job
-java -cp bootstrap.jar scripts/bld.java 
-rm -rf build/bootstrap.classes bootstrap.jar
+set -e
+# bootstrap.jar is only rebuilt when a source changes, so a daemon (./bootstrap.bash --daemon) started from it stays current
+jar=build/bootstrap.jar
+if [ ! -f $jar ] || [ -n "$(find core/src/main/java/job -name '*.java' -newer $jar)" ]; then
+   rm -rf build/bootstrap.classes
+   javac -d build/bootstrap.classes --source-path core/src/main/java $(find core/src/main/java/job -name "*.java")
+   jar cf $jar -C build/bootstrap.classes job
+   rm -rf build/bootstrap.classes
+fi
+java -cp $jar scripts/bld.java "$@"
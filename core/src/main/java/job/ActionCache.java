@@ -0,0 +1,415 @@
+package job;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/*
+ * Content addressable cache of the outputs of Buildable nodes.
+ *
+ * Unlike a fingerprint, which trusts file sizes and mtimes, an action key hashes the contents of the inputs
+ * (along with the options and the ABI of the jars upstream, transitively), so switching branches back and forth
+ * finds the outputs it built last time. An entry holds a copy of every cachedOutputs() path, a note of those which
+ * did not exist, and the diagnostics reported while building, which are replayed on restore.
+ *
+ * Entries live in <dir>/<key>, the mtime of <dir>/<key>/manifest is their last use and the least recently
+ * used are evicted once the cache grows past its size cap.
+ *    -Djob.cache=false           turn it off
+ *    -Djob.cache.dir=<dir>       default build/cache, a per-user directory can be shared between checkouts
+ *    -Djob.cache.maxMB=<mb>      default 2048
+ * Entries missing locally are fetched from, and new ones uploaded to, the RemoteCache if one is configured.
+ * Keys of native nodes (CMake, JExtract) also cover the platform and toolchain, and for CMake the checkout path.
+ */
+public class ActionCache {
+    private final Path root;
+    private final Path dir;
+    private final long maxBytes;
+    private final RemoteCache remote;
+    private final Map<Dependency, String> keys = new ConcurrentHashMap<>();
+    private final Map<Dependency, String> upstreams = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> fetches = new ConcurrentHashMap<>();
+    // bytes in the cache as of the last evict() plus what we stored since, -1 until the first evict()
+    private long totalBytes = -1;
+
+    ActionCache(Path root, Path dir, long maxBytes, RemoteCache remote) {
+        this.root = root;
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.remote = remote;
+    }
+
+    public static ActionCache of(Project project) {
+        if (!Boolean.parseBoolean(System.getProperty("job.cache", "true"))) {
+            return null;
+        }
+        var dir = System.getProperty("job.cache.dir");
+        return new ActionCache(project.rootPath(), dir == null ? project.buildPath().resolve("cache") : Path.of(dir),
+                Long.getLong("job.cache.maxMB", 2048) * 1024 * 1024, RemoteCache.of(project));
+    }
+
+    public Path dir() {
+        return dir;
+    }
+
+    public RemoteCache remote() {
+        return remote;
+    }
+
+    public String key(Dependency dependency) {
+        var key = keys.get(dependency);
+        if (key == null) {
+            try {
+                var digest = MessageDigest.getInstance("SHA-256");
+                update(digest, dependency.getClass().getName());
+                update(digest, dependency.id().fullHyphenatedName());
+                if (dependency instanceof Dependency.Optional optional) {
+                    update(digest, Boolean.toString(optional.isAvailable()));
+                }
+                if (dependency instanceof CMake || dependency instanceof JExtract) {
+                    // what natives (and the bindings to them) we get depends on the platform and the compilers
+                    update(digest, System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+                    update(digest, CMakeInfo.toolchain());
+                }
+                if (dependency instanceof CMake) {
+                    // and the CMakeCache.txt in a cmake build dir names the checkout it was configured in
+                    update(digest, root.toString());
+                }
+                if (dependency instanceof Dependency.Buildable buildable) {
+                    buildable.options().forEach(option -> update(digest, portable(option)));
+                    long hashed = 0;
+                    for (Path input : buildable.inputs()) {
+                        hashed += hashContents(digest, input, buildable.outputs(), this::portable);
+                    }
+                    dependency.id().project().metrics().count("job_hashed_bytes_total", dependency, hashed);
+                }
+                for (Dependency dep : dependency.dependencies().stream()
+                        .sorted(Comparator.comparing(d -> d.id().fullHyphenatedName())).toList()) {
+                    update(digest, dep.id().fullHyphenatedName());
+                    update(digest, upstream(dep));
+                }
+                key = HexFormat.of().formatHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            keys.put(dependency, key);
+        }
+        return key;
+    }
+
+    /*
+     * What a dependent sees of an upstream node, as with fingerprints. For a Jar that is its ABI and that of the jars
+     * it depends on, all of which javac compiles the dependent against.
+     */
+    private String upstream(Dependency dependency) {
+        if (!(dependency instanceof Jar jar)) {
+            return key(dependency);
+        }
+        var upstream = upstreams.get(dependency);
+        if (upstream == null) {
+            var sb = new StringBuilder("abi ").append(jar.abi());
+            dependency.dependencies().stream()
+                    .sorted(Comparator.comparing(d -> d.id().fullHyphenatedName()))
+                    .forEach(dep -> sb.append(' ').append(dep.id().fullHyphenatedName()).append(' ').append(upstream(dep)));
+            // hashed, so it stays short however deep and wide the dag is
+            upstream = IncrementalJavac.hash(sb.toString());
+            upstreams.put(dependency, upstream);
+        }
+        return upstream;
+    }
+
+    /*
+     * Drop the keys computed for this build, files may have changed before the next one.
+     */
+    public void reset() {
+        keys.clear();
+        upstreams.clear();
+        fetches.clear();
+    }
+
+    /*
+     * Starts fetching the remote entry of a node which is about to be built, so restore() finds it here or on its way
+     */
+    public void prefetch(Dependency.Buildable buildable) {
+        if (remote != null) {
+            var key = key(buildable);
+            var entry = dir.resolve(key);
+            if (!Files.isRegularFile(entry.resolve("manifest"))) {
+                fetches.computeIfAbsent(key, _ -> remote.fetch(key, entry));
+            }
+        }
+    }
+
+    /*
+     * Replaces the outputs of the buildable with those of a previous build of the same inputs, if we have one
+     */
+    public boolean restore(Dependency.Buildable buildable, Reporter reporter) {
+        var key = key(buildable);
+        var entry = dir.resolve(key);
+        var manifest = entry.resolve("manifest");
+        var metrics = buildable.id().project().metrics();
+        if (!Files.isRegularFile(manifest)) {
+            var fetch = remote == null ? null : fetches.remove(key);
+            if (fetch == null && remote != null) {
+                fetch = remote.fetch(key, entry);
+            }
+            if (fetch == null || !fetch.join()) {
+                metrics.count("job_cache_misses_total", buildable, 1);
+                return false;
+            }
+            metrics.count("job_cache_remote_hits_total", buildable, 1);
+            added(entry);
+        }
+        try {
+            var lines = Files.readAllLines(manifest);
+            var outputs = buildable.cachedOutputs();
+            if (lines.size() != outputs.size()) {
+                // stored when the node had other outputs
+                metrics.count("job_cache_misses_total", buildable, 1);
+                return false;
+            }
+            for (int i = 0; i < outputs.size(); i++) {
+                var output = outputs.get(i);
+                delete(output);
+                if (lines.get(i).startsWith("present\t")) {
+                    copy(entry.resolve(Integer.toString(i)), output);
+                }
+            }
+            Files.setLastModifiedTime(manifest, FileTime.fromMillis(System.currentTimeMillis()));
+            metrics.count("job_cache_hits_total", buildable, 1);
+            var diagnostics = entry.resolve("diagnostics");
+            if (Files.exists(diagnostics)) {
+                reporter.replay(buildable, Files.readAllLines(diagnostics).stream().map(line -> {
+                    int tab = line.indexOf('\t');
+                    return new Reporter.Diagnostic(line.substring(0, tab), unescape(line.substring(tab + 1)));
+                }).toList());
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // A damaged entry is just a miss, and the build rewrites the outputs
+            reporter.warning(buildable, "ignoring cache entry " + entry + " " + e);
+            metrics.count("job_cache_misses_total", buildable, 1);
+            return false;
+        }
+    }
+
+    public void store(Dependency.Buildable buildable, List<Reporter.Diagnostic> diagnostics) {
+        var entry = dir.resolve(key(buildable));
+        if (Files.exists(entry)) {
+            return;
+        }
+        var temp = dir.resolve(entry.getFileName() + ".tmp-" + Thread.currentThread().threadId());
+        try {
+            delete(temp);
+            Files.createDirectories(temp);
+            var outputs = buildable.cachedOutputs();
+            var manifest = new StringBuilder();
+            for (int i = 0; i < outputs.size(); i++) {
+                var output = outputs.get(i);
+                if (Files.exists(output)) {
+                    copy(output, temp.resolve(Integer.toString(i)));
+                    manifest.append("present\t").append(portable(output.toString())).append('\n');
+                } else {
+                    manifest.append("absent\t").append(portable(output.toString())).append('\n');
+                }
+            }
+            var sb = new StringBuilder();
+            diagnostics.forEach(d -> sb.append(d.kind()).append('\t').append(escape(d.message())).append('\n'));
+            Files.writeString(temp.resolve("diagnostics"), sb.toString());
+            // the manifest last, an entry without one is never restored
+            Files.writeString(temp.resolve("manifest"), manifest.toString());
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Someone else stored it first, or we can't write the cache, neither should fail the build
+            delete(temp);
+            return;
+        }
+        if (remote != null) {
+            remote.upload(entry.getFileName().toString(), entry);
+        }
+        added(entry);
+    }
+
+    /*
+     * Counts a new entry, and evicts only once the cache has outgrown its cap, rather than listing it every store
+     */
+    private synchronized void added(Path entry) {
+        if (totalBytes < 0) {
+            evict();
+            return;
+        }
+        try {
+            totalBytes += size(entry);
+        } catch (IOException e) {
+            // counted when we next evict
+        }
+        if (totalBytes > maxBytes) {
+            evict();
+        }
+    }
+
+    /*
+     * Deletes least recently used entries until the cache is within its size cap. Other processes sharing the cache
+     * dir add entries we don't count, this is where we find out about them.
+     */
+    public synchronized void evict() {
+        record Entry(Path path, long lastUsed, long size) {
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (var paths = Files.list(dir)) {
+            for (Path path : paths.toList()) {
+                var manifest = path.resolve("manifest");
+                if (Files.isRegularFile(manifest)) {
+                    entries.add(new Entry(path, Files.getLastModifiedTime(manifest).toMillis(), size(path)));
+                }
+            }
+        } catch (IOException e) {
+            return;
+        }
+        long total = entries.stream().mapToLong(Entry::size).sum();
+        entries.sort(Comparator.comparingLong(Entry::lastUsed));
+        for (var entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            delete(entry.path());
+            total -= entry.size();
+        }
+        totalBytes = total;
+    }
+
+    private static long size(Path root) throws IOException {
+        try (var files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).mapToLong(p -> {
+                try {
+                    return Files.size(p);
+                } catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        if (to.getParent() != null) {
+            Files.createDirectories(to.getParent());
+        }
+        if (!Files.isDirectory(from)) {
+            Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Files.walkFileTree(from, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attributes) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(d).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file).toString()), StandardCopyOption.COPY_ATTRIBUTES, StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void delete(Path path) {
+        if (Files.exists(path)) {
+            try (var files = Files.walk(path)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> {
+                    try {
+                        Files.deleteIfExists(p);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String s) {
+        var sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char n = s.charAt(++i);
+                sb.append(n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Keys are shared between checkouts (and through the remote cache, between machines), so paths are made relative to the root
+     */
+    private String portable(String s) {
+        return s.replace(root.toString(), "$ROOT");
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /*
+     * Returns the number of bytes hashed
+     */
+    private static long hashContents(MessageDigest digest, Path root, List<Path> outputs, Function<String, String> portable) {
+        if (!Files.exists(root)) {
+            update(digest, portable.apply(root + " missing"));
+            return 0;
+        }
+        List<Path> files;
+        if (Files.isDirectory(root)) {
+            try (var walk = Files.walk(root)) {
+                files = walk.filter(p -> outputs.stream().noneMatch(p::startsWith))
+                        .filter(Files::isRegularFile)
+                        .sorted()
+                        .toList();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        } else {
+            files = List.of(root);
+        }
+        var buffer = new byte[8192];
+        long hashed = 0;
+        for (Path file : files) {
+            update(digest, portable.apply(file.toString()));
+            try (InputStream in = Files.newInputStream(file)) {
+                for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                    digest.update(buffer, 0, n);
+                    hashed += n;
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            digest.update((byte) 0);
+        }
+        return hashed;
+    }
+}
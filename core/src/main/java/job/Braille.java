@@ -0,0 +1,161 @@
+package job;
+
+import java.util.BitSet;
+
+/*
+ * A pixel framebuffer drawn with unicode braille characters, each character a 2x4 block of dots.
+ * Started life as IMG in scripts/dots.java, the Dashboard draws with it.
+ *
+ * Pixels are bit packed, one byte per character cell, so a cell's glyph is a lookup in a 256 entry table rather
+ * than eight reads. Cells changed since the last paint() are tracked, and paint() emits only cursor moves and the
+ * glyphs which differ from what it painted last, which is what keeps a full terminal animating at 30 fps cheap.
+ */
+public class Braille {
+    public final int width;
+    public final int height;
+    public final int charWidth;
+    public final int charHeight;
+    // bit x*4+y of a cell is the dot at (x,y) within it
+    final byte[] cells;
+    // what the terminal shows of each cell, as of the last paint()
+    private final byte[] painted;
+    private final BitSet dirty;
+    private boolean repaintAll = true;
+
+    private static final char[] glyphs = new char[256];
+
+    static {
+        for (int bits = 0; bits < glyphs.length; bits++) {
+            glyphs[bits] = brailchar(bits);
+        }
+    }
+
+    public Braille(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.charWidth = width / 2;
+        this.charHeight = height / 4;
+        this.cells = new byte[charWidth * charHeight];
+        this.painted = new byte[cells.length];
+        this.dirty = new BitSet(cells.length);
+    }
+
+    /*
+     * Pixels outside the buffer are ignored, so callers can draw without clipping
+     */
+    public Braille set(int x, int y) {
+        if (x >= 0 && x < charWidth * 2 && y >= 0 && y < charHeight * 4) {
+            int cell = (y >> 2) * charWidth + (x >> 1);
+            byte bits = (byte) (cells[cell] | 1 << ((x & 1) * 4 + (y & 3)));
+            if (bits != cells[cell]) {
+                cells[cell] = bits;
+                dirty.set(cell);
+            }
+        }
+        return this;
+    }
+
+    public Braille reset(int x, int y) {
+        if (x >= 0 && x < charWidth * 2 && y >= 0 && y < charHeight * 4) {
+            int cell = (y >> 2) * charWidth + (x >> 1);
+            byte bits = (byte) (cells[cell] & ~(1 << ((x & 1) * 4 + (y & 3))));
+            if (bits != cells[cell]) {
+                cells[cell] = bits;
+                dirty.set(cell);
+            }
+        }
+        return this;
+    }
+
+    int i(int x, int y) {
+        return cells[(y >> 2) * charWidth + (x >> 1)] >> ((x & 1) * 4 + (y & 3)) & 1;
+    }
+
+    /*
+     * Our bits are column major (x*4+y). Braille numbers dots 1-3 and 4-6 down each column, but the bottom
+     * row (dots 7 and 8) came later and sits at bits 6 and 7.
+     * See the table at https://en.wikipedia.org/wiki/Braille_Patterns
+     */
+    static char brailchar(int bytebits) {
+        int mapped = (bytebits & 0x07) | (bytebits & 0x70) >> 1 | (bytebits & 0x08) << 3 | (bytebits & 0x80);
+        return (char) (0x2800 + mapped);
+    }
+
+    public Braille delay(int ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return this;
+    }
+
+    public Braille clean() {
+        for (int cell = 0; cell < cells.length; cell++) {
+            if (cells[cell] != 0) {
+                cells[cell] = 0;
+                dirty.set(cell);
+            }
+        }
+        return this;
+    }
+
+    public String row(int cy) {
+        var chars = new char[charWidth];
+        for (int cx = 0; cx < charWidth; cx++) {
+            chars[cx] = glyphs[cells[cy * charWidth + cx] & 0xff];
+        }
+        return new String(chars);
+    }
+
+    /*
+     * The next paint() draws every cell, say after the screen was cleared
+     */
+    public Braille invalidate() {
+        repaintAll = true;
+        return this;
+    }
+
+    /*
+     * Appends what it takes to bring the terminal up to date, given that our top left cell is at (1 based) row and
+     * column: a cursor move to each run of changed cells, then their glyphs.
+     */
+    public StringBuilder paint(StringBuilder out, int row, int column) {
+        if (repaintAll) {
+            System.arraycopy(cells, 0, painted, 0, cells.length);
+            for (int cy = 0; cy < charHeight; cy++) {
+                out.append("\033[").append(row + cy).append(';').append(column).append('H').append(row(cy));
+            }
+            repaintAll = false;
+            dirty.clear();
+            return out;
+        }
+        // where the cursor is after the last glyph we wrote, -1 before we have written one
+        int next = -1;
+        for (int cell = dirty.nextSetBit(0); cell >= 0; cell = dirty.nextSetBit(cell + 1)) {
+            if (cells[cell] == painted[cell]) {
+                continue;
+            }
+            int cx = cell % charWidth;
+            if (cell != next || cx == 0) {
+                out.append("\033[").append(row + cell / charWidth).append(';').append(column + cx).append('H');
+            }
+            out.append(glyphs[cells[cell] & 0xff]);
+            painted[cell] = cells[cell];
+            next = cell + 1;
+        }
+        dirty.clear();
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("+").append("-".repeat(charWidth)).append("+\n");
+        for (int cy = 0; cy < charHeight; cy++) {
+            sb.append('|').append(row(cy)).append("|\n");
+        }
+        sb.append("+").append("-".repeat(charWidth)).append("+\n");
+        return sb.toString();
+    }
+}
@@ -1,10 +1,14 @@
 package job;
 
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
 public class CMake extends DependencyImpl<CMake> implements Dependency.Buildable, Dependency.WithPath {
     public ForkExec.Result cmake(Consumer<String> lineConsumer, List<String> tailopts) {
@@ -12,14 +16,13 @@ public class CMake extends DependencyImpl<CMake> implements Dependency.Buildable
         tailopts.forEach(opts::add);
         id.project().reporter.command(this, opts.toString());
         id.project().reporter.progress(this, opts.toString());
-        var result =  ForkExec.forkExec(this, id.project().rootPath(), opts);
-        result.stdErrAndOut().forEach((line) -> {
+        var result =  ForkExec.forkExec(this, id.project().rootPath(), opts, (line) -> {
             lineConsumer.accept(line);
             id().project().reporter.info(this, line);
         });
 
         if (result.status()!=0){
-            id().project().reporter.error(this, opts.toString());
+            id().project().reporter.error(this, opts + " (see " + result.log() + ")");
             throw new RuntimeException("CMake failed");
         }
         return result;
@@ -30,20 +33,130 @@ public class CMake extends DependencyImpl<CMake> implements Dependency.Buildable
         throw new IllegalStateException("who called me");
     }
 
+    @Override
+    public List<Path> inputs() {
+        return List.of(cmakeSourceDir());
+    }
+
+    /*
+     * The build dir, and the shared libraries our lists add, which they install into -DHAT_TARGET (the build path)
+     * where java.library.path finds them. Restoring the build dir from the action cache without them would leave
+     * the natives missing, and a library deleted from the build path has us build again.
+     */
+    @Override
+    public List<Path> outputs() {
+        List<Path> outputs = new ArrayList<>(List.of(cmakeBuildDir()));
+        libraries().forEach(library -> outputs.add(id().project().buildPath().resolve(System.mapLibraryName(library))));
+        return outputs;
+    }
+
+    private static final Pattern addLibrary = Pattern.compile("add_library\\s*\\(\\s*([A-Za-z0-9_.+-]+)\\s+(?:SHARED|MODULE)\\b");
+
+    // The names of add_library(<name> SHARED|MODULE ...) in our lists, names made of cmake variables we can't know
+    List<String> libraries() {
+        Set<String> libraries = new TreeSet<>();
+        listFiles().forEach(p -> {
+            try {
+                var matcher = addLibrary.matcher(Files.readString(p));
+                while (matcher.find()) {
+                    libraries.add(matcher.group(1));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return List.copyOf(libraries);
+    }
+
+    // Every CMakeLists.txt and *.cmake file in the source tree
+    private List<Path> listFiles() {
+        if (!Files.isDirectory(cmakeSourceDir())) {
+            return List.of();
+        }
+        try (var files = Files.walk(cmakeSourceDir())) {
+            return files.filter(p -> !p.startsWith(cmakeBuildDir()))
+                    .filter(p -> p.getFileName().toString().equals("CMakeLists.txt") || p.getFileName().toString().endsWith(".cmake"))
+                    .filter(Files::isRegularFile)
+                    .sorted()
+                    .toList();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public List<String> options() {
+        return List.of("-DHAT_TARGET=" + id().project().buildPath());
+    }
+
     ForkExec.Result cmake(Consumer<String> lineConsumer, String... opts) {
         return cmake(lineConsumer, List.of(opts));
     }
 
+    List<String> configureOpts() {
+        return List.of("-DHAT_TARGET=" + id().project().buildPath(), "-B", cmakeBuildDir().toString(), "-S", cmakeSourceDir().toString());
+    }
+
+    /*
+     * Configures from scratch, throwing away the CMake cache
+     */
     public ForkExec.Result cmakeInit(Consumer<String> lineConsumer) {
-        return cmake(lineConsumer, "--fresh", "-DHAT_TARGET=" + id().project().buildPath(), "-B", cmakeBuildDir().toString(), "-S", cmakeSourceDir().toString());
+        try (var _ = id().project().trace().phase(this, "cmake configure")) {
+            List<String> opts = new ArrayList<>(List.of("--fresh"));
+            opts.addAll(configureOpts());
+            return cmake(lineConsumer, opts);
+        }
+    }
+
+    /*
+     * Configures only if the CMake lists or our options changed since the last successful configure,
+     * keeping the CMake cache (and so the objects already built) otherwise.
+     */
+    public void cmakeConfigure(Consumer<String> lineConsumer) {
+        var stamp = cmakeBuildDir().resolve("job.configure");
+        var key = configureKey();
+        try {
+            if (Files.exists(cmakeBuildDir().resolve("CMakeCache.txt")) && Files.exists(stamp) && Files.readString(stamp).equals(key)) {
+                id().project().reporter.progress(this, "configured");
+                return;
+            }
+            Files.deleteIfExists(stamp);
+            try (var _ = id().project().trace().phase(this, "cmake configure")) {
+                cmake(lineConsumer, configureOpts());
+            }
+            Files.writeString(stamp, key);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The configure options and the contents of every CMakeLists.txt and *.cmake file in the source tree
+    String configureKey() {
+        var sb = new StringBuilder(String.join(" ", configureOpts())).append('\n');
+        listFiles().forEach(p -> {
+            try {
+                sb.append(p).append('\n').append(Files.readString(p)).append('\n');
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return IncrementalJavac.hash(sb.toString());
     }
 
     public ForkExec.Result cmakeBuildTarget(Consumer<String> lineConsumer, String target) {
         return cmake(lineConsumer, "--build", cmakeBuildDir().toString(), "--target", target);
     }
 
+    /*
+     * We already hold one cpu of the governor's, --parallel also gets our fair share of those free as we start
+     */
     public ForkExec.Result cmakeBuild(Consumer<String> lineConsumer) {
-        return cmake(lineConsumer, "--build", cmakeBuildDir().toString());
+        var governor = id().project().governor();
+        var lease = governor.lease(this);
+        int extra = lease == null ? 0 : lease.extraCpus(governor.cpus() - 1);
+        try (var _ = id().project().trace().phase(this, "cmake build")) {
+            return cmake(lineConsumer, "--build", cmakeBuildDir().toString(), "--parallel", Integer.toString(1 + extra));
+        }
     }
 
     public ForkExec.Result cmakeClean(Consumer<String> lineConsumer) {
@@ -53,16 +166,16 @@ public class CMake extends DependencyImpl<CMake> implements Dependency.Buildable
 
     @Override
     public boolean build() {
-        cmakeInit(_ -> {
+        cmakeConfigure(_ -> {
         });
         cmakeBuild(_ -> {
         });
-        return false;
+        return true;
     }
 
     @Override
     public boolean clean() {
-        cmakeInit(_ -> {
+        cmakeConfigure(_ -> {
         });
         cmakeClean(_ -> {
         });
@@ -1,31 +1,60 @@
 package job;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/*
+ * What cmake's find_package(<find>) tells us about a native package (OpenCL, OpenGL, CUDA ...).
+ *
+ * Each probe is a cmake configure of a tiny project, run on a virtual thread. It starts on first use, or when
+ * Dag.available() asks every optional to start probing, so all the CMakeInfos in a dag probe concurrently and
+ * the first call which needs the answer waits.
+ * The answer is kept in conf/cmake-info/<find>/properties along with a fingerprint of the toolchain (the cmake
+ * version, the compilers and the environment which cmake consults), and is probed again when that changes.
+ */
 public abstract class CMakeInfo extends CMake implements Dependency.Optional, JExtractOptProvider {
+    static final String TOOLCHAIN_KEY = "job.toolchain";
+
+    private static final ExecutorService probes = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Environment variables which influence where cmake finds compilers and packages
+    static final List<String> toolchainEnv = List.of(
+            "PATH", "CC", "CXX", "CUDACXX", "CUDA_PATH", "CUDA_HOME", "CMAKE_PREFIX_PATH", "CMAKE_GENERATOR",
+            "LD_LIBRARY_PATH", "DYLD_LIBRARY_PATH", "DYLD_FRAMEWORK_PATH", "PKG_CONFIG_PATH", "SDKROOT");
+
+    private static String toolchain;
+    // what toolchain was computed from, other than cmake --version
+    private static String toolchainTools;
 
     Path asPath(String key) {
+        var properties = probe().properties();
         return properties.containsKey(key) ? Path.of((String) properties.get(key)) : null;
     }
 
     boolean asBoolean(String key) {
+        var properties = probe().properties();
         return properties.containsKey(key) && Boolean.parseBoolean((String) properties.get(key));
     }
 
     String asString(String key) {
+        var properties = probe().properties();
         return (properties.containsKey(key) && properties.get(key) instanceof String s) ? s : null;
     }
     List<String> asSemiSeparatedStringList(String key) {
@@ -47,14 +76,20 @@ public abstract class CMakeInfo extends CMake implements Dependency.Optional, JE
     final String text;
 
     final Set<String> vars;
-    Properties properties = new Properties();
     final Path propertiesPath;
-    final String sysName;
-    final String fwk;
-    final boolean darwin;
-    final boolean linux;
-    final Map<String, String> otherVarMap = new LinkedHashMap<>();
-    final boolean available;
+    final Map<String, String> otherVarMap = new ConcurrentHashMap<>();
+
+    record Probe(Properties properties, boolean available, String sysName, String fwk) {
+        boolean darwin() {
+            return "Darwin".equals(sysName);
+        }
+
+        boolean linux() {
+            return "Linux".equals(sysName);
+        }
+    }
+
+    private volatile CompletableFuture<Probe> probe;
 
     CMakeInfo(Project.Id id, String find, String response, Set<String> varsIn, Set<Dependency> buildDependencies) {
         super(id, id.project().confPath().resolve("cmake-info").resolve(find), buildDependencies);
@@ -71,23 +106,68 @@ public abstract class CMakeInfo extends CMake implements Dependency.Optional, JE
 
         this.text = template.replaceAll("__find__", find).replaceAll("__response__", response);
         this.propertiesPath = cmakeSourceDir().resolve("properties");
+    }
+
+    /*
+     * Not from our constructor, which would hand this to another thread before our subclass's constructor has run
+     */
+    @Override
+    public void startProbing() {
+        if (probe == null) {
+            synchronized (this) {
+                if (probe == null) {
+                    probe = CompletableFuture.supplyAsync(this::load, probes);
+                }
+            }
+        }
+    }
+
+    Probe probe() {
+        startProbing();
+        try {
+            return probe.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new IllegalStateException(e.getCause());
+        }
+    }
+
+    boolean darwin() {
+        return probe().darwin();
+    }
+
+    boolean linux() {
+        return probe().linux();
+    }
+
+    String fwk() {
+        return probe().fwk();
+    }
+
+    private Probe load() {
+        var key = IncrementalJavac.hash(toolchain() + "\n" + text + "\n" + String.join(",", vars));
+        var properties = new Properties();
         if (Files.exists(propertiesPath)) {
-            properties = new Properties();
-            try {
-                properties.load(Files.newInputStream(propertiesPath));
+            try (var in = Files.newInputStream(propertiesPath)) {
+                properties.load(in);
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
-        } else {
-            id.project().mkdir(cmakeBuildDir());
+        }
+        if (!key.equals(properties.get(TOOLCHAIN_KEY))) {
+            if (!properties.isEmpty()) {
+                id().project().reporter.progress(this, "toolchain changed, probing " + find + " again");
+            }
+            properties = new Properties();
+            id().project().mkdir(cmakeBuildDir());
             try {
-                Files.writeString(CMakeLists_txt, this.text, StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+                Files.writeString(CMakeLists_txt, this.text, StandardCharsets.UTF_8);
                 Pattern p = Pattern.compile("-- *([A-Za-z_0-9]+)=(.*)");
+                var probed = properties;
                 cmakeInit((line) -> {
                     if (p.matcher(line) instanceof Matcher matcher && matcher.matches()) {
                         //   System.out.println("GOT "+matcher.group(1)+"->"+matcher.group(2));
                         if (this.vars.contains(matcher.group(1))) {
-                            properties.put(matcher.group(1), matcher.group(2));
+                            probed.put(matcher.group(1), matcher.group(2));
                         } else {
                             otherVarMap.put(matcher.group(1), matcher.group(2));
                         }
@@ -95,24 +175,76 @@ public abstract class CMakeInfo extends CMake implements Dependency.Optional, JE
                         // System.out.println("skipped " + line);
                     }
                 });
-                properties.store(Files.newOutputStream(propertiesPath), "A comment");
+                properties.put(TOOLCHAIN_KEY, key);
+                try (var out = Files.newOutputStream(propertiesPath)) {
+                    properties.store(out, "cmake find_package(" + find + ")");
+                }
             } catch (IOException ioException) {
                 throw new IllegalStateException(ioException);
             }
         }
-        available = asBoolean(response);
-        sysName = asString("CMAKE_HOST_SYSTEM_NAME");
-        darwin = sysName.equals("Darwin");
-        linux = sysName.equals("Linux");
-        fwk = darwin?asString("CMAKE_C_IMPLICIT_LINK_FRAMEWORK_DIRECTORIES"):null;
+        var sysName = (String) properties.get("CMAKE_HOST_SYSTEM_NAME");
+        boolean available = properties.containsKey(response) && Boolean.parseBoolean((String) properties.get(response));
+        return new Probe(properties, available, sysName,
+                "Darwin".equals(sysName) ? (String) properties.get("CMAKE_C_IMPLICIT_LINK_FRAMEWORK_DIRECTORIES") : null);
+    }
+
+    /*
+     * Fingerprint of the cmake version, the compilers it will pick and the environment. The environment and the
+     * tools on the PATH are looked at each time (a few stats), cmake --version is only run again when they change,
+     * so a daemon notices an upgraded compiler.
+     */
+    static synchronized String toolchain() {
+        var env = System.getenv();
+        var tools = new StringBuilder();
+        toolchainEnv.forEach(name -> tools.append(name).append('=').append(env.getOrDefault(name, "")).append('\n'));
+        // jextract too, it is part of the action key of JExtract nodes
+        for (String tool : List.of("cmake", env.getOrDefault("CC", "cc"), env.getOrDefault("CXX", "c++"), "nvcc", "jextract")) {
+            tools.append(tool).append(' ').append(onPath(tool, env.getOrDefault("PATH", ""))).append('\n');
+        }
+        if (!tools.toString().equals(toolchainTools)) {
+            var sb = new StringBuilder(tools);
+            try {
+                var process = new ProcessBuilder("cmake", "--version").redirectErrorStream(true).start();
+                try (var in = process.getInputStream()) {
+                    sb.append(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                }
+                process.waitFor();
+            } catch (IOException e) {
+                sb.append("no cmake");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            toolchain = sb.toString();
+            toolchainTools = tools.toString();
+        }
+        return toolchain;
+    }
+
+    // The path and mtime of the executable the shell would run, an upgraded compiler has a new mtime
+    private static String onPath(String tool, String path) {
+        var candidates = tool.contains(File.separator)
+                ? List.of(Path.of(tool))
+                : Arrays.stream(path.split(File.pathSeparator)).filter(d -> !d.isEmpty()).map(d -> Path.of(d, tool)).toList();
+        for (Path candidate : candidates) {
+            if (Files.isExecutable(candidate)) {
+                try {
+                    return candidate.toRealPath() + " " + Files.getLastModifiedTime(candidate).toMillis();
+                } catch (IOException e) {
+                    return candidate.toString();
+                }
+            }
+        }
+        return "missing";
     }
 
     @Override
     public void writeCompilerFlags(Path outputDir) {
-        if (darwin) {
+        if (darwin()) {
             try {
                 Path compileFLags = outputDir.resolve("compile_flags.txt");
-                Files.writeString(compileFLags, "-F" + fwk + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE);
+                Files.writeString(compileFLags, "-F" + fwk() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE);
             } catch (IOException e) {
                 throw new IllegalStateException(e);
             }
@@ -120,6 +252,6 @@ public abstract class CMakeInfo extends CMake implements Dependency.Optional, JE
     }
     @Override
     public boolean isAvailable() {
-        return available;
+        return probe().available();
     }
 }
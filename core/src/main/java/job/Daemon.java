@@ -0,0 +1,368 @@
+package job;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/*
+ * Opt-in persistent build daemon.
+ *
+ * A build script hands us its model (how to create the Project and its artifacts) and its action:
+ *
+ *    Daemon.run(args, () -> { var project = new Project(...); Jar.of(project.id("core")); return project; },
+ *                     (project, _) -> project.build());
+ *
+ * Without --daemon the model is created and the action run in this JVM, as before.
+ * With --daemon we connect to (or start) a background JVM over a Unix domain socket, it keeps the Project,
+ * the fingerprints and a JIT-warmed javac between invocations, streams the build output back to us and
+ * exits after it has been idle for --daemon-idle=<minutes> (default 30). --daemon-stop stops it.
+ * The socket, and the daemon's log, are in <java.io.tmpdir>/job-<user>, which must be rwx------.
+ * Either way --jfr records the build to build/job.jfr, see JobEvents.
+ */
+public class Daemon {
+    static final String CLIENT = "--daemon";
+    static final String SERVE = "--daemon-serve";
+    static final String STOP = "--daemon-stop";
+    static final String IDLE = "--daemon-idle=";
+
+    // Frames sent from the daemon to the client
+    static final byte OUT = 'O';
+    static final byte EXIT = 'X';
+    static final byte STALE = 'S';
+
+    public static void run(String[] argArr, Supplier<Project> model, BiConsumer<Project, List<String>> buildAction) {
+        // --jfr travels with the build args, so the daemon records the build it runs for us
+        var action = JobEvents.recording(buildAction);
+        var args = List.of(argArr);
+        var buildArgs = args.stream().filter(a -> !a.startsWith("--daemon")).toList();
+        long idleMinutes = args.stream().filter(a -> a.startsWith(IDLE)).map(a -> Long.parseLong(a.substring(IDLE.length()))).findFirst().orElse(30L);
+        if (args.contains(SERVE)) {
+            serve(model.get(), action, idleMinutes);
+        } else if (args.contains(STOP)) {
+            request(List.of(STOP));
+        } else if (args.contains(CLIENT)) {
+            var status = request(buildArgs);
+            if (status == null) {
+                spawn(args);
+                status = request(buildArgs);
+            }
+            if (status == null) {
+                System.err.println("job daemon unavailable, building in process");
+                action.accept(model.get(), buildArgs);
+            } else if (status != 0) {
+                System.exit(status);
+            }
+        } else {
+            action.accept(model.get(), buildArgs);
+        }
+    }
+
+    /*
+     * Sockets (and daemon logs) live in a directory only we can use, so nobody else can connect to our daemon, or
+     * put a socket of their own where our client will look. We refuse one which is someone else's, or open to others.
+     */
+    static Path socketDir() throws IOException {
+        var dir = Path.of(System.getProperty("java.io.tmpdir"), "job-" + System.getProperty("user.name"));
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return Files.createDirectories(dir);
+        }
+        var ownerOnly = PosixFilePermissions.fromString("rwx------");
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(ownerOnly));
+        } catch (FileAlreadyExistsException e) {
+            // ours from before, we hope, see below
+        }
+        var attributes = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory()
+                || !attributes.owner().getName().equals(System.getProperty("user.name"))
+                || !attributes.permissions().equals(ownerOnly)) {
+            throw new IOException(dir + " must be a directory owned by " + System.getProperty("user.name") + " with permissions rwx------");
+        }
+        return dir;
+    }
+
+    static Path socketPath() throws IOException {
+        return socketDir().resolve(IncrementalJavac.hash(System.getProperty("user.dir")) + ".sock");
+    }
+
+    /*
+     * The daemon must be restarted when the build script, the job library, the command line or the toolchain
+     * environment (CMakeInfo.toolchainEnv) changes.
+     * We hash their contents rather than trusting mtimes, a jar rebuilt from the same sources (bootstrap.bash)
+     * is the same jar.
+     */
+    static String staleKey() {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            var arguments = ProcessHandle.current().info().arguments().orElse(new String[0]);
+            for (String argument : arguments) {
+                // the script and any jars, but not the build arguments which may differ on every invocation
+                if (Files.isRegularFile(Path.of(argument))) {
+                    update(digest, Path.of(argument));
+                }
+            }
+            for (String entry : System.getProperty("java.class.path", "").split(java.io.File.pathSeparator)) {
+                if (!entry.isEmpty()) {
+                    update(digest, Path.of(entry));
+                }
+            }
+            // and the environment tools are found through, a daemon's is the one it was started with
+            var env = System.getenv();
+            CMakeInfo.toolchainEnv.forEach(name -> digest.update((name + "=" + env.getOrDefault(name, "") + "\n").getBytes(StandardCharsets.UTF_8)));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, Path path) {
+        digest.update((path + "\n").getBytes(StandardCharsets.UTF_8));
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (var files = Files.walk(path)) {
+            for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                digest.update((path.relativize(file) + "\n").getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(file));
+            }
+        } catch (IOException e) {
+            // unreadable, so the daemon can't have loaded it either
+        }
+    }
+
+    /*
+     * Returns the daemon's exit status for our request, or null if there is no (current) daemon.
+     */
+    static Integer request(List<String> buildArgs) {
+        Path socket;
+        try {
+            socket = socketPath();
+        } catch (IOException e) {
+            System.err.println("job daemon " + e.getMessage());
+            return null;
+        }
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            var out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeUTF(staleKey());
+            out.writeInt(buildArgs.size());
+            for (String arg : buildArgs) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            var in = new DataInputStream(Channels.newInputStream(channel));
+            while (true) {
+                switch (in.readByte()) {
+                    case OUT -> {
+                        var bytes = new byte[in.readInt()];
+                        in.readFully(bytes);
+                        System.out.write(bytes);
+                        System.out.flush();
+                    }
+                    case EXIT -> {
+                        return in.readInt();
+                    }
+                    case STALE -> {
+                        waitForExit(socket);
+                        return null;
+                    }
+                    default -> throw new IOException("bad frame from job daemon");
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void waitForExit(Path socket) {
+        for (int i = 0; i < 100 && Files.exists(socket); i++) {
+            sleep(50);
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * Relaunch this JVM, with the same options and script, as the daemon, then wait for its socket.
+     */
+    static void spawn(List<String> args) {
+        var info = ProcessHandle.current().info();
+        if (info.command().isEmpty() || info.arguments().isEmpty()) {
+            return;
+        }
+        List<String> command = new ArrayList<>();
+        command.add(info.command().get());
+        for (String argument : info.arguments().get()) {
+            if (!argument.equals(CLIENT)) {
+                command.add(argument);
+            }
+        }
+        command.add(SERVE);
+        Path socket;
+        try {
+            socket = socketPath();
+            Files.deleteIfExists(socket); // left behind by a daemon which died
+            new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .redirectOutput(socket.resolveSibling(socket.getFileName() + ".log").toFile())
+                    .start();
+        } catch (IOException e) {
+            return;
+        }
+        for (int i = 0; i < 200 && !Files.exists(socket); i++) {
+            sleep(50);
+        }
+    }
+
+    static void serve(Project project, BiConsumer<Project, List<String>> action, long idleMinutes) {
+        Path socket;
+        try {
+            socket = socketPath();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        var key = staleKey();
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            Files.deleteIfExists(socket);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            var lastActive = new long[]{System.nanoTime()};
+            var watchdog = new Thread(() -> {
+                while (server.isOpen()) {
+                    sleep(1000);
+                    synchronized (lastActive) {
+                        if (lastActive[0] != 0 && System.nanoTime() - lastActive[0] > TimeUnit.MINUTES.toNanos(idleMinutes)) {
+                            close(server);
+                        }
+                    }
+                }
+            }, "job-daemon-idle");
+            watchdog.setDaemon(true);
+            watchdog.start();
+            var stdout = System.out;
+            var stderr = System.err;
+            while (server.isOpen()) {
+                try (var channel = server.accept()) {
+                    synchronized (lastActive) {
+                        lastActive[0] = 0; // busy
+                    }
+                    var in = new DataInputStream(Channels.newInputStream(channel));
+                    var out = new DataOutputStream(Channels.newOutputStream(channel));
+                    var clientKey = in.readUTF();
+                    List<String> buildArgs = new ArrayList<>();
+                    for (int i = in.readInt(); i > 0; i--) {
+                        buildArgs.add(in.readUTF());
+                    }
+                    if (!clientKey.equals(key) || buildArgs.contains(STOP)) {
+                        out.writeByte(STALE);
+                        out.flush();
+                        close(server);
+                    } else {
+                        int status = 0;
+                        var frames = new PrintStream(new FrameOutputStream(out), true);
+                        System.setOut(frames);
+                        System.setErr(frames);
+                        try {
+                            action.accept(project, buildArgs);
+                        } catch (Throwable t) {
+                            t.printStackTrace(frames);
+                            status = 1;
+                        } finally {
+                            // the reporter writes on its own thread, what it has yet to write goes to this client
+                            project.reporter.flush();
+                            frames.flush();
+                            System.setOut(stdout);
+                            System.setErr(stderr);
+                        }
+                        synchronized (out) {
+                            out.writeByte(EXIT);
+                            out.writeInt(status);
+                            out.flush();
+                        }
+                    }
+                } catch (AsynchronousCloseException e) {
+                    // idle timeout or stop
+                } catch (IOException e) {
+                    System.err.println("job daemon client failed " + e);
+                } finally {
+                    synchronized (lastActive) {
+                        lastActive[0] = System.nanoTime();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                // nothing more we can do
+            }
+        }
+    }
+
+    private static void close(ServerSocketChannel server) {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    /*
+     * Everything printed during a build goes back to the client as OUT frames.
+     */
+    static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            synchronized (out) {
+                out.writeByte(OUT);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+                out.flush();
+            }
+        }
+    }
+}
@@ -1,6 +1,11 @@
 package job;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -36,83 +41,207 @@ public class Dag {
                 return append("\n   ").quoted(from).append("->").quoted(to).append(";");
             }
         }
-        Map<Dependency, Set<Dependency>> map = new LinkedHashMap<>();
-        record Edge(Dependency from, Dependency to) {}
-        List<Edge> edges = new ArrayList<>();
-         public void recurse( Dependency from) {
-            var set = map.computeIfAbsent(from, _ -> new LinkedHashSet<>());
-            var deps = from.dependencies();
-            deps.forEach(dep -> {
-                edges.add(new Edge(from, dep));
-                set.add(dep);
-                recurse( dep);
-            });
-        }
+        /*
+         * Every reachable Dependency is interned to an int index when the dag is built.
+         * Edges are then held in compressed sparse row form:
+         *    the dependencies of node i are depIndices[depOffsets[i] .. depOffsets[i+1])
+         *    the dependents of node i are dependentIndices[dependentOffsets[i] .. dependentOffsets[i+1])
+         * Construction and topological sorting are both O(V+E) and shared subgraphs are visited once.
+         */
+        final List<Dependency> nodes = new ArrayList<>();
+        final Map<Dependency, Integer> index = new HashMap<>();
+        final int[] depOffsets;
+        final int[] depIndices;
+        final int[] dependentOffsets;
+        final int[] dependentIndices;
+        private int[] order;
+        private static final Comparator<Dependency> byId = Comparator.comparing(d -> d.id().fullHyphenatedName());
+        private final Map<Dependency, Dependency> pruned = new LinkedHashMap<>();
+
         public Dag(Set<Dependency> deps) {
-            deps.forEach(this::recurse);
+            // Intern in id order, dependency sets are often Set.of(...) whose iteration order varies between runs
+            Deque<Dependency> work = new ArrayDeque<>();
+            deps.stream().sorted(byId).forEach(dep -> intern(dep, work));
+            while (!work.isEmpty()) {
+                work.removeFirst().dependencies().stream().sorted(byId).forEach(dep -> intern(dep, work));
+            }
+            int v = nodes.size();
+            depOffsets = new int[v + 1];
+            for (int i = 0; i < v; i++) {
+                depOffsets[i + 1] = depOffsets[i] + nodes.get(i).dependencies().size();
+            }
+            depIndices = new int[depOffsets[v]];
+            dependentOffsets = new int[v + 1];
+            for (int i = 0; i < v; i++) {
+                int e = depOffsets[i];
+                for (Dependency dep : nodes.get(i).dependencies()) {
+                    int d = index.get(dep);
+                    depIndices[e++] = d;
+                    dependentOffsets[d + 1]++;
+                }
+            }
+            for (int i = 0; i < v; i++) {
+                dependentOffsets[i + 1] += dependentOffsets[i];
+            }
+            dependentIndices = new int[depIndices.length];
+            int[] fill = Arrays.copyOf(dependentOffsets, v);
+            for (int i = 0; i < v; i++) {
+                for (int e = depOffsets[i]; e < depOffsets[i + 1]; e++) {
+                    dependentIndices[fill[depIndices[e]]++] = i;
+                }
+            }
         }
+
         public Dag(Dependency...deps) {
              this(Stream.of(deps).collect(Collectors.toSet()));
         }
 
+        private void intern(Dependency dependency, Deque<Dependency> work) {
+            if (!index.containsKey(dependency)) {
+                index.put(dependency, nodes.size());
+                nodes.add(dependency);
+                work.addLast(dependency);
+            }
+        }
+
+        public int size() {
+            return nodes.size();
+        }
+
+        public Dependency node(int i) {
+            return nodes.get(i);
+        }
+
+        public int indexOf(Dependency dependency) {
+            return index.getOrDefault(dependency, -1);
+        }
+
+        public int dependencyCount(int i) {
+            return depOffsets[i + 1] - depOffsets[i];
+        }
+
+        public int[] dependencies(int i) {
+            return Arrays.copyOfRange(depIndices, depOffsets[i], depOffsets[i + 1]);
+        }
+
+        public int[] dependents(int i) {
+            return Arrays.copyOfRange(dependentIndices, dependentOffsets[i], dependentOffsets[i + 1]);
+        }
+
         public String toDot(){
             StringBuilder sb = new StringBuilder();
             DotBuilder.of(sb::append, db-> {
-                map.keySet().forEach(k -> {
+                nodes.forEach(k -> {
                     db.node(k.id().projectRelativeHyphenatedName(), k.id().projectRelativeHyphenatedName());
                 });
-                edges.forEach(e ->
-                        db.edge(e.from.id().projectRelativeHyphenatedName(), e.to.id().projectRelativeHyphenatedName())
-                );
+                for (int i = 0; i < nodes.size(); i++) {
+                    for (int e = depOffsets[i]; e < depOffsets[i + 1]; e++) {
+                        db.edge(nodes.get(i).id().projectRelativeHyphenatedName(), nodes.get(depIndices[e]).id().projectRelativeHyphenatedName());
+                    }
+                }
             });
             return sb.toString();
         }
+
+        /*
+         * Kahn's algorithm, leaves (nodes with no dependencies) first.
+         * Returns node indices such that every node appears after all of its dependencies.
+         */
+        public int[] order() {
+            if (order == null) {
+                int v = nodes.size();
+                int[] inDegree = new int[v];
+                int[] queue = new int[v];
+                int head = 0;
+                int tail = 0;
+                for (int i = 0; i < v; i++) {
+                    inDegree[i] = dependencyCount(i);
+                    if (inDegree[i] == 0) {
+                        queue[tail++] = i;
+                    }
+                }
+                while (head < tail) {
+                    int n = queue[head++];
+                    for (int e = dependentOffsets[n]; e < dependentOffsets[n + 1]; e++) {
+                        if (--inDegree[dependentIndices[e]] == 0) {
+                            queue[tail++] = dependentIndices[e];
+                        }
+                    }
+                }
+                if (tail != v) {
+                    var cyclic = new ArrayList<String>();
+                    for (int i = 0; i < v; i++) {
+                        if (inDegree[i] > 0) {
+                            cyclic.add(nodes.get(i).id().projectRelativeHyphenatedName());
+                        }
+                    }
+                    throw new IllegalStateException("Dependency cycle involving " + cyclic);
+                }
+                order = queue;
+            }
+            return order;
+        }
+
         public Set<Dependency> ordered(){
             Set<Dependency> ordered = new LinkedHashSet<>();
-            while (!map.isEmpty()) {
-                var leaves = map.entrySet().stream()
-                        .filter(e -> e.getValue().isEmpty())    // if this entry has zero dependencies
-                        .map(Map.Entry::getKey)                 // get the key
-                        .collect(Collectors.toSet());
-                map.values().forEach(v -> leaves.forEach(v::remove));
-                leaves.forEach(leaf -> {
-                    map.remove(leaf);
-                    ordered.add(leaf);
-                });
+            for (int i : order()) {
+                ordered.add(nodes.get(i));
             }
             return ordered;
         }
 
+    /*
+     * Unavailable Optionals are pushed once along the reverse (dependent) edges, every dependent reached is
+     * pruned and remembers the unavailable Optional that caused it. The Optionals themselves are kept, as before.
+     */
     public Dag available(){
-        var ordered = this.ordered();
-        Set<Dependency> unavailable = ordered.stream().filter(
-                d -> {
-                    if (d instanceof Dependency.Optional opt) {
-                       return !opt.isAvailable();
-                    }else{
-                        return false;
-                    }
-                })
-                .collect(Collectors.toSet());
-
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            for(Dependency dep : ordered) {
-                if (!changed) {
-                    var optionalDependsOnUnavailable = dep.dependencies().stream().filter(d ->
-                            unavailable.contains(d) || d instanceof Dependency.Optional o && !o.isAvailable()).findFirst();
-                    if (optionalDependsOnUnavailable.isPresent()) {
-                        changed = true;
-                        unavailable.add(dep);
-                        ordered.remove(dep);
-                        break;
-                    }
+        int v = nodes.size();
+        int[] cause = new int[v];
+        Arrays.fill(cause, -1);
+        int[] queue = new int[v];
+        int head = 0;
+        int tail = 0;
+        // so the probes run side by side rather than one after another as we ask
+        nodes.forEach(node -> {
+            if (node instanceof Dependency.Optional opt) {
+                opt.startProbing();
+            }
+        });
+        for (int i = 0; i < v; i++) {
+            if (nodes.get(i) instanceof Dependency.Optional opt && !opt.isAvailable()) {
+                cause[i] = i;
+                queue[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            int n = queue[head++];
+            for (int e = dependentOffsets[n]; e < dependentOffsets[n + 1]; e++) {
+                int dependent = dependentIndices[e];
+                if (cause[dependent] == -1) {
+                    cause[dependent] = cause[n];
+                    queue[tail++] = dependent;
                 }
             }
         }
-        return new Dag(ordered);
+        Set<Dependency> available = new LinkedHashSet<>();
+        Map<Dependency, Dependency> pruned = new LinkedHashMap<>();
+        for (int i : order()) {
+            if (cause[i] == -1 || cause[i] == i) {
+                available.add(nodes.get(i));
+            } else {
+                pruned.put(nodes.get(i), nodes.get(cause[i]));
+            }
+        }
+        var dag = new Dag(available);
+        dag.pruned.putAll(pruned);
+        return dag;
     }
 
+    /*
+     * Nodes removed by available(), mapped to the unavailable Optional which caused their removal.
+     */
+    public Map<Dependency, Dependency> pruned() {
+        return pruned;
+    }
 
 }
@@ -0,0 +1,193 @@
+package job;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/*
+ * Builds the nodes of a Dag concurrently.
+ *
+ * Each node is handed to a worker as soon as all of its dependencies (within the dag) have completed,
+ * so independent subgraphs (backends, jextract bindings, examples) build side by side.
+ * Nodes whose fingerprint matches the one recorded by their last successful build are skipped, the outputs
+ * of others are restored from the action cache when it has seen the same inputs before.
+ * A node fails if its build throws or returns false (javac errors, say). Once a node fails no further builds are
+ * started, and the first failure is rethrown from execute(), the others suppressed by it.
+ */
+public class DagExecutor {
+    private final Project project;
+    private final int workers;
+
+    DagExecutor(Project project, int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1, got " + workers);
+        }
+        this.project = project;
+        this.workers = workers;
+    }
+
+    public int workers() {
+        return workers;
+    }
+
+    /*
+     * Restores the outputs of the buildable from the action cache if we can, otherwise builds it and caches what it built
+     */
+    private boolean restoreOrBuild(Dependency.Buildable buildable) {
+        var cache = project.actionCache();
+        if (cache == null || buildable.outputs().isEmpty()) {
+            return buildable.build();
+        }
+        try (var _ = project.trace().phase(buildable, "cache restore")) {
+            if (cache.restore(buildable, project.reporter)) {
+                if (project.governor().lease(buildable) instanceof ResourceGovernor.Lease lease) {
+                    lease.restored();
+                }
+                project.trace().restored(buildable);
+                project.reporter.progress(buildable, "restored from cache");
+                return true;
+            }
+        }
+        project.reporter.startCapture();
+        boolean built;
+        List<Reporter.Diagnostic> diagnostics;
+        try {
+            built = buildable.build();
+        } finally {
+            diagnostics = project.reporter.endCapture();
+        }
+        if (built) {
+            try (var _ = project.trace().phase(buildable, "cache store")) {
+                cache.store(buildable, diagnostics);
+            }
+        }
+        return built;
+    }
+
+    /*
+     * Starts fetching what the remote cache has for a node as it is queued, unless it is up to date, so the worker
+     * which takes it doesn't wait on the network
+     */
+    private void prefetch(Dependency.Buildable buildable) {
+        var cache = project.actionCache();
+        if (cache == null || cache.remote() == null || buildable.outputs().isEmpty()) {
+            return;
+        }
+        Thread.ofVirtual().name("job-prefetch").start(() -> {
+            try {
+                if (!project.fingerprints().upToDate(buildable)) {
+                    cache.prefetch(buildable);
+                }
+            } catch (RuntimeException e) {
+                // the worker will run into it too, and report it
+            }
+        });
+    }
+
+    public void execute(Dag dag) {
+        int[] order = dag.order();
+        if (order.length == 0) {
+            return;
+        }
+        var pending = new AtomicIntegerArray(order.length);
+        for (int i = 0; i < order.length; i++) {
+            pending.set(i, dag.dependencyCount(i));
+        }
+
+        var remaining = new CountDownLatch(order.length);
+        var failures = new ConcurrentLinkedQueue<Throwable>();
+        var skipped = new AtomicInteger();
+        var threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workers, runnable -> {
+            var thread = new Thread(runnable, "job-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            var scheduler = new Object() {
+                void submit(int n) {
+                    var queued = new JobEvents.NodeQueued();
+                    if (queued.shouldCommit()) {
+                        queued.node = JobEvents.node(dag.node(n));
+                        queued.commit();
+                    }
+                    long queuedNanos = System.nanoTime();
+                    if (failures.isEmpty() && dag.node(n) instanceof Dependency.Buildable buildable) {
+                        prefetch(buildable);
+                    }
+                    executor.execute(() -> {
+                        var node = dag.node(n);
+                        var event = new JobEvents.Node();
+                        event.begin();
+                        event.queued = System.nanoTime() - queuedNanos;
+                        event.outcome = "skipped";
+                        project.reporter.begin(node);
+                        try {
+                            if (!failures.isEmpty() && node instanceof Dependency.Buildable) {
+                                skipped.incrementAndGet();
+                            } else if (node instanceof Dependency.Buildable buildable) {
+                                if (project.fingerprints().upToDate(buildable)) {
+                                    event.outcome = "up to date";
+                                    project.reporter.progress(node, "up to date");
+                                } else {
+                                    boolean built;
+                                    try (var _ = project.governor().admit(node);
+                                         var _ = project.trace().phase(node, Trace.NODE)) {
+                                        project.reporter.started(node);
+                                        long start = System.nanoTime();
+                                        built = restoreOrBuild(buildable);
+                                        project.metrics().time("job_node_seconds", node, System.nanoTime() - start);
+                                    }
+                                    if (!built) {
+                                        // it has reported why, its dependents must not build against its last (or no) outputs
+                                        throw new IllegalStateException(node.id().fullHyphenatedName() + " did not build");
+                                    }
+                                    event.outcome = "built";
+                                    project.fingerprints().record(buildable);
+                                }
+                            }
+                        } catch (Throwable t) {
+                            event.outcome = "failed";
+                            project.fingerprints().forget(node);
+                            project.reporter.error(node, "build failed " + t);
+                            failures.add(t);
+                        } finally {
+                            if (event.shouldCommit()) {
+                                event.node = JobEvents.node(node);
+                                event.commit();
+                            }
+                            project.reporter.end(node);
+                            for (int dependent : dag.dependents(n)) {
+                                if (pending.decrementAndGet(dependent) == 0) {
+                                    submit(dependent);
+                                }
+                            }
+                            remaining.countDown();
+                        }
+                    });
+                }
+            };
+            Arrays.stream(order).filter(n -> dag.dependencyCount(n) == 0).forEach(scheduler::submit);
+            remaining.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failures.isEmpty()) {
+            project.reporter.error(null, failures.size() + (failures.size() == 1 ? " node" : " nodes") + " failed, "
+                    + skipped.get() + " not built because of " + (failures.size() == 1 ? "it" : "them"));
+            var iterator = failures.iterator();
+            var first = iterator.next();
+            var exception = first instanceof RuntimeException runtimeException ? runtimeException : new RuntimeException(first);
+            iterator.forEachRemaining(exception::addSuppressed);
+            throw exception;
+        }
+    }
+}
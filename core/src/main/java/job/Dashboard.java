@@ -0,0 +1,241 @@
+package job;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * A live view of a build, drawn by the Reporter below the output as it scrolls. Turn on with -Djob.dashboard=true
+ *
+ *    job-worker-1 ⣿⣿⣿⣿⣿⣿⣿⣿⣿⣿⣿⣿⠀⠀⣿⣿⣿⣿   backend-ffi-opencl
+ *    job-worker-2 ⠀⠀⣿⣿⣿⣿⣿⣿⣿⣿⠀⠀⠀⠀⠀⠀⠀⠀
+ *    busy 1/2     ⣀⣤⣶⣿⣿⣿⣿⣿⣶⣤⣀⣀⣤⣤⣤⣤⣤⣤
+ *    12.4s, about 8.2s to go, critical path core → backend-ffi → backend-ffi-opencl
+ *
+ * One Gantt lane per worker, a sparkline of how many workers were busy, and the chain of nodes which bounds the
+ * rest of the build. A build with mostly empty lanes is starved of parallelism, one with one long bar waiting on
+ * a single node is bound by it. Estimates come from how long each node took last time (build/job.durations),
+ * nodes we have no time for count as a second.
+ */
+public class Dashboard {
+    private record Interval(String node, long start, long end) {
+    }
+
+    private final Dag dag;
+    private final int workers;
+    private final Path path;
+    private final int columns;
+    private final long start = System.currentTimeMillis();
+    private final Map<String, Long> previous = new TreeMap<>();
+    private final Map<String, List<Interval>> lanes = new ConcurrentHashMap<>();
+    private final Map<Dependency, Long> running = new ConcurrentHashMap<>();
+    private final Map<Dependency, Long> finished = new ConcurrentHashMap<>();
+    private final Map<Dependency, String> threads = new ConcurrentHashMap<>();
+
+    Dashboard(Dag dag, int workers, Path path) {
+        this.dag = dag;
+        this.workers = workers;
+        this.path = path;
+        int width = 80;
+        try {
+            width = Integer.parseInt(System.getenv().getOrDefault("COLUMNS", "80"));
+        } catch (NumberFormatException e) {
+            // 80 it is
+        }
+        this.columns = Math.max(20, width - 40);
+        if (Files.exists(path)) {
+            var properties = new Properties();
+            try (var in = Files.newInputStream(path)) {
+                properties.load(in);
+                properties.forEach((k, v) -> previous.put((String) k, Long.parseLong((String) v)));
+            } catch (IOException | RuntimeException e) {
+                // no estimates this time
+                previous.clear();
+            }
+        }
+    }
+
+    public static Dashboard of(Project project, Dag dag) {
+        return new Dashboard(dag, project.workers(), project.buildPath().resolve("job.durations"));
+    }
+
+    void started(Dependency dependency) {
+        var thread = Thread.currentThread().getName();
+        threads.put(dependency, thread);
+        running.put(dependency, System.currentTimeMillis());
+        lanes.computeIfAbsent(thread, _ -> new ArrayList<>());
+    }
+
+    void finished(Dependency dependency) {
+        long now = System.currentTimeMillis();
+        var began = running.remove(dependency);
+        if (began == null) {
+            return;
+        }
+        finished.put(dependency, now - began);
+        var lane = lanes.get(threads.get(dependency));
+        synchronized (lane) {
+            lane.add(new Interval(dependency.id().projectRelativeHyphenatedName(), began, now));
+        }
+    }
+
+    private long estimate(Dependency dependency) {
+        return previous.getOrDefault(dependency.id().fullHyphenatedName(), 1000L);
+    }
+
+    /*
+     * The frame, as lines, the Reporter clears and redraws it
+     */
+    public String draw() {
+        long now = System.currentTimeMillis();
+        var remaining = remaining(now);
+        long elapsed = now - start;
+        // the time axis stretches to the expected end of the build, so bars don't jump about as it goes
+        long span = Math.max(1, elapsed + remaining.eta);
+        double millisPerDot = span / (columns * 2.0);
+
+        Map<String, List<Interval>> snapshot = new LinkedHashMap<>();
+        new TreeMap<>(lanes).forEach((thread, lane) -> {
+            List<Interval> intervals;
+            synchronized (lane) {
+                intervals = new ArrayList<>(lane);
+            }
+            running.forEach((dependency, began) -> {
+                if (thread.equals(threads.get(dependency))) {
+                    intervals.add(new Interval(dependency.id().projectRelativeHyphenatedName(), began, now));
+                }
+            });
+            snapshot.put(thread, intervals);
+        });
+
+        var sb = new StringBuilder();
+        var lane = new Braille(columns * 2, 4);
+        snapshot.forEach((thread, intervals) -> {
+            lane.clean();
+            String current = "";
+            for (var interval : intervals) {
+                int from = (int) ((interval.start - start) / millisPerDot);
+                // at least a dot, so short nodes still show
+                int to = Math.max(from + 1, (int) ((interval.end - start) / millisPerDot));
+                for (int x = from; x < to; x++) {
+                    for (int y = 0; y < 3; y++) {
+                        lane.set(x, y);
+                    }
+                }
+                if (interval.end == now) {
+                    current = interval.node;
+                }
+            }
+            sb.append(pad(thread, 14)).append(lane.row(0)).append("  ").append(current).append('\n');
+        });
+
+        // each dot column is the fraction of the workers busy during it, 8 dots high
+        var spark = new Braille(columns * 2, 8);
+        spark.clean();
+        for (int x = 0; x < columns * 2; x++) {
+            long from = start + (long) (x * millisPerDot);
+            long to = start + (long) ((x + 1) * millisPerDot);
+            if (from > now) {
+                break;
+            }
+            double busy = 0;
+            for (var intervals : snapshot.values()) {
+                for (var interval : intervals) {
+                    long overlap = Math.min(to, interval.end) - Math.max(from, interval.start);
+                    if (overlap > 0) {
+                        busy += overlap / (double) (to - from);
+                    }
+                }
+            }
+            int height = (int) Math.round(Math.min(1.0, busy / workers) * 8);
+            for (int y = 8 - height; y < 8; y++) {
+                spark.set(x, y);
+            }
+        }
+        sb.append(pad("busy " + running.size() + "/" + workers, 14)).append(spark.row(0)).append('\n');
+        sb.append(pad("", 14)).append(spark.row(1)).append('\n');
+
+        sb.append(String.format("%.1fs", elapsed / 1000.0));
+        if (!remaining.path.isEmpty()) {
+            sb.append(String.format(", about %.1fs to go, critical path ", remaining.eta / 1000.0))
+                    .append(String.join(" → ", remaining.path));
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    private record Remaining(long eta, List<String> path) {
+    }
+
+    /*
+     * The longest chain of nodes still to finish, each costing what it took last time (less what it has run
+     * so far). With fewer workers than the dag is wide it is the work left shared between them which bounds us.
+     */
+    private Remaining remaining(long now) {
+        int[] order = dag.order();
+        long[] finish = new long[dag.size()];
+        int[] via = new int[dag.size()];
+        long work = 0;
+        int last = -1;
+        for (int n : order) {
+            var dependency = dag.node(n);
+            long cost;
+            if (finished.containsKey(dependency)) {
+                cost = 0;
+            } else if (running.containsKey(dependency)) {
+                cost = Math.max(0, estimate(dependency) - (now - running.get(dependency)));
+            } else {
+                cost = estimate(dependency);
+            }
+            work += cost;
+            via[n] = -1;
+            long ready = 0;
+            for (int d : dag.dependencies(n)) {
+                if (finish[d] > ready) {
+                    ready = finish[d];
+                    via[n] = d;
+                }
+            }
+            finish[n] = ready + cost;
+            if (cost > 0 && (last < 0 || finish[n] > finish[last])) {
+                last = n;
+            }
+        }
+        List<String> path = new ArrayList<>();
+        for (int n = last; n >= 0; n = via[n]) {
+            if (!finished.containsKey(dag.node(n))) {
+                path.addFirst(dag.node(n).id().projectRelativeHyphenatedName());
+            }
+        }
+        return new Remaining(last < 0 ? 0 : Math.max(finish[last], work / workers), path);
+    }
+
+    /*
+     * Keeps the times of the nodes this build built for the next one's estimates. Nodes up to date or restored from
+     * the cache keep the time of their last build, a restore says nothing about how long a rebuild takes
+     */
+    public void save(Trace trace) {
+        trace.spans().stream()
+                .filter(span -> span.phase().equals(Trace.NODE) && !trace.isRestored(span.dependency()))
+                .forEach(span -> previous.put(span.dependency().id().fullHyphenatedName(), span.durationNanos() / 1_000_000));
+        var sb = new StringBuilder("# job node durations, ms\n");
+        previous.forEach((k, v) -> sb.append(k).append('=').append(v).append('\n'));
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, sb.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String pad(String s, int width) {
+        return s.length() >= width ? s.substring(0, width - 1) + " " : s + " ".repeat(width - s.length());
+    }
+}
@@ -18,6 +18,34 @@ public interface Dependency {
         boolean clean();
 
         List<Path> generatedPaths();
+
+        /*
+         * Files or directories (walked recursively) whose contents determine what build() produces.
+         */
+        default List<Path> inputs() {
+            return List.of();
+        }
+
+        /*
+         * Files or directories produced by build(). A node which declares no outputs is never up to date.
+         */
+        default List<Path> outputs() {
+            return List.of();
+        }
+
+        /*
+         * What the action cache saves and restores for this node, the outputs plus any state a later build relies on
+         */
+        default List<Path> cachedOutputs() {
+            return outputs();
+        }
+
+        /*
+         * Anything other than input files which affects the outputs (compiler or tool options)
+         */
+        default List<String> options() {
+            return List.of();
+        }
     }
 
     interface Executable extends Dependency {
@@ -33,5 +61,11 @@ public interface Dependency {
 
     interface Optional extends Dependency {
         boolean isAvailable();
+
+        /*
+         * Start finding out, if that takes a while, Dag.available() calls this on every optional before it asks any
+         */
+        default void startProbing() {
+        }
     }
 }
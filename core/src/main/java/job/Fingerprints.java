@@ -0,0 +1,169 @@
+package job;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Persisted fingerprints of Buildable nodes, used to skip nodes which are up to date.
+ *
+ * A node's fingerprint covers its options, the path/size/mtime of every input file and the
+ * fingerprints of its dependencies, so a change upstream changes every fingerprint downstream.
+ * Jar dependencies contribute their ABI hash rather than their fingerprint.
+ * Fingerprints are recorded only after a node builds successfully.
+ */
+public class Fingerprints {
+    private final Path path;
+    private final Map<String, String> stored = new TreeMap<>();
+    private final Map<Dependency, String> current = new ConcurrentHashMap<>();
+
+    Fingerprints(Path path) {
+        this.path = path;
+        if (Files.exists(path)) {
+            var properties = new Properties();
+            try (var in = Files.newInputStream(path)) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            properties.forEach((k, v) -> stored.put((String) k, (String) v));
+        }
+    }
+
+    public String fingerprint(Dependency dependency) {
+        var fingerprint = current.get(dependency);
+        if (fingerprint == null) {
+            try {
+                var digest = MessageDigest.getInstance("SHA-256");
+                update(digest, dependency.getClass().getName());
+                update(digest, dependency.id().fullHyphenatedName());
+                if (dependency instanceof Dependency.Optional optional) {
+                    update(digest, Boolean.toString(optional.isAvailable()));
+                }
+                if (dependency instanceof Dependency.Buildable buildable) {
+                    buildable.options().forEach(option -> update(digest, option));
+                    for (Path input : buildable.inputs()) {
+                        hashTree(digest, input, buildable.outputs());
+                    }
+                }
+                // dependencies() is often built from Set.of(...), whose iteration order varies between runs
+                for (Dependency dep : dependency.dependencies().stream()
+                        .sorted(Comparator.comparing(d -> d.id().fullHyphenatedName())).toList()) {
+                    update(digest, dep.id().fullHyphenatedName());
+                    update(digest, upstream(dep));
+                }
+                fingerprint = HexFormat.of().formatHex(digest.digest());
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            current.put(dependency, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    /*
+     * What a dependent sees of an upstream node. For a Jar that is its ABI (and that of its own upstream),
+     * so a body only change in core does not ripple into every jar compiled against it.
+     */
+    private String upstream(Dependency dependency) {
+        if (dependency instanceof Jar jar) {
+            var sb = new StringBuilder("abi ").append(jar.abi());
+            dependency.dependencies().stream()
+                    .sorted(Comparator.comparing(d -> d.id().fullHyphenatedName()))
+                    .forEach(dep -> sb.append(' ').append(dep.id().fullHyphenatedName()).append(' ').append(upstream(dep)));
+            return sb.toString();
+        }
+        return fingerprint(dependency);
+    }
+
+    public boolean upToDate(Dependency.Buildable buildable) {
+        var fingerprint = fingerprint(buildable);
+        var outputs = buildable.outputs();
+        if (outputs.isEmpty() || !outputs.stream().allMatch(Files::exists)) {
+            return false;
+        }
+        String previous;
+        synchronized (stored) {
+            previous = stored.get(buildable.id().fullHyphenatedName());
+        }
+        return fingerprint.equals(previous);
+    }
+
+    public void record(Dependency.Buildable buildable) {
+        var fingerprint = fingerprint(buildable);
+        synchronized (stored) {
+            stored.put(buildable.id().fullHyphenatedName(), fingerprint);
+        }
+    }
+
+    public void forget(Dependency dependency) {
+        current.remove(dependency);
+        synchronized (stored) {
+            stored.remove(dependency.id().fullHyphenatedName());
+        }
+    }
+
+    /*
+     * Drop the fingerprints computed for this build, files may have changed before the next one.
+     */
+    public void reset() {
+        current.clear();
+    }
+
+    public void save() {
+        var sb = new StringBuilder("# job fingerprints\n");
+        synchronized (stored) {
+            stored.forEach((k, v) -> sb.append(k).append('=').append(v).append('\n'));
+        }
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, sb.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        digest.update(s.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    private static void hashTree(MessageDigest digest, Path root, List<Path> outputs) {
+        if (!Files.exists(root)) {
+            update(digest, root + " missing");
+        } else if (!Files.isDirectory(root)) {
+            hashFile(digest, root);
+        } else {
+            try (var files = Files.walk(root)) {
+                files.filter(p -> outputs.stream().noneMatch(p::startsWith))
+                        .filter(Files::isRegularFile)
+                        .sorted()
+                        .forEach(p -> hashFile(digest, p));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static void hashFile(MessageDigest digest, Path file) {
+        try {
+            var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            update(digest, file.toString());
+            update(digest, Long.toString(attributes.size()));
+            update(digest, Long.toString(attributes.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
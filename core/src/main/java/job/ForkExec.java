@@ -3,41 +3,203 @@ package job;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
+/*
+ * Runs external tools.
+ *
+ * start() returns at once. A virtual thread pumps the process's merged stdout/stderr to the line consumer, to a
+ * log file and into a bounded tail (-Djob.fork.tailLines, default 200) which is all the Result keeps, and the
+ * result completes from Process.onExit(), so neither a chatty nor a long running
+ * process holds heap or a platform thread. Opts.timeout() (or -Djob.fork.timeoutMinutes) kills a process which
+ * runs too long, cancel() kills one now, and both take its descendants with it, as does exiting the build JVM.
+ * Logs are build/logs/<id>-<tool>-<n>.log, n going round 1 .. -Djob.fork.logs (default 5), so we keep the last
+ * few runs of each tool for each node, however long a daemon runs.
+ */
 public class ForkExec {
     public record Result(
             Dependency dependency,
             Path path,
             Opts opts,
             int status,
-            List<String> stdErrAndOut){
+            List<String> stdErrAndOut,
+            Path log){
     }
+
+    static final int tailLines = Integer.getInteger("job.fork.tailLines", 200);
+    static final int logsKept = Math.max(1, Integer.getInteger("job.fork.logs", 5));
+    // For tools whose Opts don't set a timeout, none unless -Djob.fork.timeoutMinutes=<n>
+    static final Duration defaultTimeout = Long.getLong("job.fork.timeoutMinutes") == null
+            ? null
+            : Duration.ofMinutes(Long.getLong("job.fork.timeoutMinutes"));
+
+    private static final Set<Running> running = ConcurrentHashMap.newKeySet();
+    private static final Map<String, AtomicInteger> logCounts = new ConcurrentHashMap<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> running.forEach(Running::cancel), "job-fork-cleanup"));
+    }
+
+    public static final class Running {
+        private final Process process;
+        private final CompletableFuture<Result> result;
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+
+        private Running(Process process, CompletableFuture<Result> result) {
+            this.process = process;
+            this.result = result;
+        }
+
+        public CompletableFuture<Result> result() {
+            return result;
+        }
+
+        public long pid() {
+            return process.pid();
+        }
+
+        /*
+         * Kills the process and everything it started, the result still completes (with the tool's exit status)
+         */
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+            }
+        }
+
+        public boolean cancelled() {
+            return cancelled.get();
+        }
+
+        public Result join() {
+            try {
+                return result.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException runtimeException ? runtimeException : new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /*
+     * Runs the tool to completion, reporting its output as it goes
+     */
     static Result forkExec(Dependency dependency, Path path, Opts opts) {
+        return start(dependency, path, opts, dependency == null
+                ? System.out::println
+                : line -> dependency.id().project().reporter.info(dependency, line)).join();
+    }
+
+    static Result forkExec(Dependency dependency, Path path, Opts opts, Consumer<String> lineConsumer) {
+        return start(dependency, path, opts, lineConsumer).join();
+    }
+
+    public static Running start(Dependency dependency, Path path, Opts opts, Consumer<String> lineConsumer) {
+        var log = logPath(dependency, path, opts);
+        Process process;
         try {
-            List<String> stdErrAndOut = new ArrayList<>();
-            Process process = new ProcessBuilder()
+            Files.createDirectories(log.getParent());
+            process = new ProcessBuilder()
                     .directory(path.toFile())
                     .command(opts.opts)
                     .redirectErrorStream(true)
                     .start();
-            new BufferedReader(new InputStreamReader(process.getInputStream())).lines().forEach(line->{
-                System.out.println(line);
-                stdErrAndOut.add(line);
-            });
-            process.waitFor();
-            return new Result(dependency, path, opts, process.exitValue(), stdErrAndOut);
         } catch (IOException e) {
             throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
         }
+        if (dependency != null && dependency.id().project().governor().lease(dependency) instanceof ResourceGovernor.Lease lease) {
+            // so its memory counts against the node which forked it
+            lease.forked(process.toHandle());
+        }
+        var tail = new ArrayDeque<String>();
+        var pumped = new CompletableFuture<Void>();
+        Thread.ofVirtual().name("job-fork-" + process.pid()).start(() -> {
+            try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+                 Writer writer = Files.newBufferedWriter(log, StandardCharsets.UTF_8)) {
+                writer.write("# " + opts + "\n");
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    writer.write(line);
+                    writer.write('\n');
+                    synchronized (tail) {
+                        if (tail.size() == tailLines) {
+                            tail.removeFirst();
+                        }
+                        tail.addLast(line);
+                    }
+                    lineConsumer.accept(line);
+                }
+                pumped.complete(null);
+            } catch (IOException | RuntimeException e) {
+                // nobody is reading its output any more, so it would block
+                process.descendants().forEach(ProcessHandle::destroyForcibly);
+                process.destroyForcibly();
+                pumped.completeExceptionally(e);
+            }
+        });
+        var result = process.onExit().thenCombine(pumped, (exited, _) -> {
+            synchronized (tail) {
+                return new Result(dependency, path, opts, exited.exitValue(), new ArrayList<>(tail), log);
+            }
+        });
+        var event = new JobEvents.Fork();
+        event.begin();
+        result.whenComplete((completed, _) -> {
+            if (event.shouldCommit()) {
+                event.node = JobEvents.node(dependency);
+                event.command = opts.toString();
+                event.pid = process.pid();
+                event.status = completed == null ? -1 : completed.status();
+                event.commit();
+            }
+        });
+        if (dependency != null) {
+            var metrics = dependency.id().project().metrics();
+            metrics.count("job_forks_total", dependency, 1);
+            long started = System.nanoTime();
+            result.whenComplete((_, _) -> metrics.time("job_fork_seconds", dependency, System.nanoTime() - started));
+        }
+        var handle = new Running(process, result);
+        running.add(handle);
+        result.whenComplete((_, _) -> running.remove(handle));
+        var timeout = opts.timeout != null ? opts.timeout : defaultTimeout;
+        if (timeout != null) {
+            CompletableFuture.delayedExecutor(timeout.toMillis(), TimeUnit.MILLISECONDS).execute(() -> {
+                if (!result.isDone()) {
+                    lineConsumer.accept(opts.opts.getFirst() + " timed out after " + timeout.toSeconds() + "s, killing it");
+                    handle.cancel();
+                }
+            });
+        }
+        return handle;
+    }
+
+    private static Path logPath(Dependency dependency, Path path, Opts opts) {
+        var name = dependency == null ? "job" : dependency.id().fullHyphenatedName();
+        var tool = Path.of(opts.opts.getFirst()).getFileName().toString();
+        int n = logCounts.computeIfAbsent(name + "-" + tool, _ -> new AtomicInteger()).getAndIncrement() % logsKept + 1;
+        var logs = dependency == null ? path.resolve("build/logs") : dependency.id().project().buildPath().resolve("logs");
+        return logs.resolve(name + "-" + tool + "-" + n + ".log");
     }
 
     public static class Opts {
         List<String> opts = new ArrayList<>();
+        Duration timeout;
         private Opts(){
 
         }
@@ -46,6 +208,11 @@ public class ForkExec {
             return this;
         }
 
+        Opts timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
         public static Opts of(String executable) {
             Opts opts = new Opts();
             opts.add(executable);
@@ -0,0 +1,509 @@
+package job;
+
+import java.io.IOException;
+import java.lang.classfile.AnnotationValue;
+import java.lang.classfile.Annotation;
+import java.lang.classfile.AttributedElement;
+import java.lang.classfile.Attributes;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.FieldModel;
+import java.lang.classfile.MethodModel;
+import java.lang.classfile.constantpool.ClassEntry;
+import java.lang.classfile.constantpool.MemberRefEntry;
+import java.lang.classfile.constantpool.PoolEntry;
+import java.lang.classfile.constantpool.Utf8Entry;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/*
+ * Keeps enough state between builds of a Jar to recompile only what changed.
+ *
+ * For every class in the classes dir we remember (from the class file itself, via java.lang.classfile)
+ * which source produced it, its supertypes, the classes and members it references and a hash per member
+ * of everything a dependent can observe (flags, descriptor, generic signature, annotations, constant value).
+ *
+ * A build then recompiles the changed sources, diffs the new class files against the old ones and
+ * recompiles just the dependents whose referenced members changed, and the subtypes of classes whose members
+ * changed, repeating until nothing more changes.
+ * Inlined constants leave no trace in dependents, so a changed constant falls back to a full build, as does
+ * any change of javac options or of the ABI of the upstream jars.
+ */
+class IncrementalJavac {
+    interface Compiler {
+        // Returns the class files written, or null if javac reported errors
+        List<Path> compile(List<Path> sources, boolean full);
+    }
+
+    record Result(boolean ok, boolean full, Set<String> removedClassFiles, Set<Path> writtenClassFiles) {
+    }
+
+    static final class ClassInfo {
+        final String name;
+        final String source;
+        final List<String> supertypes;
+        final Set<String> classRefs;
+        final Set<String> memberRefs;
+        final String header;
+        final Map<String, String> members;
+        final Map<String, String> constants;
+        // Hash of what other jars can see, public and protected declarations only, empty for classes they can't see
+        final String abi;
+
+        ClassInfo(String name, String source, List<String> supertypes, Set<String> classRefs, Set<String> memberRefs,
+                  String header, Map<String, String> members, Map<String, String> constants, String abi) {
+            this.name = name;
+            this.source = source;
+            this.supertypes = supertypes;
+            this.classRefs = classRefs;
+            this.memberRefs = memberRefs;
+            this.header = header;
+            this.members = members;
+            this.constants = constants;
+            this.abi = abi;
+        }
+
+        String classFileName() {
+            return name + ".class";
+        }
+    }
+
+    record Stamp(long size, long lastModified) {
+        static Stamp of(Path path) {
+            try {
+                var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return new Stamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private final Path statePath;
+    private final Path sourceRoot;
+    private final Path classesDir;
+    private String optionsKey;
+    private String upstreamKey;
+    private final Map<String, Stamp> sources = new TreeMap<>();
+    private final Map<String, ClassInfo> classes = new TreeMap<>();
+
+    IncrementalJavac(Path statePath, Path sourceRoot, Path classesDir) {
+        this.statePath = statePath;
+        this.sourceRoot = sourceRoot;
+        this.classesDir = classesDir;
+        load();
+    }
+
+    Result build(List<Path> sourceFiles, String optionsKey, String upstreamKey, Compiler compiler) {
+        Map<String, Path> current = new TreeMap<>();
+        sourceFiles.forEach(p -> current.put(relative(p), p));
+
+        boolean full = this.optionsKey == null
+                || !this.optionsKey.equals(optionsKey)
+                || !Objects.equals(this.upstreamKey, upstreamKey)
+                || !Files.isDirectory(classesDir)
+                || classes.values().stream().anyMatch(c -> c.source == null || !Files.exists(classesDir.resolve(c.classFileName())));
+        this.optionsKey = optionsKey;
+        this.upstreamKey = upstreamKey;
+        if (full) {
+            return fullBuild(current, compiler);
+        }
+
+        Set<String> toCompile = new TreeSet<>();
+        Set<String> removedSources = new TreeSet<>(sources.keySet());
+        removedSources.removeAll(current.keySet());
+        current.forEach((rel, path) -> {
+            if (!Stamp.of(path).equals(sources.get(rel))) {
+                toCompile.add(rel);
+            }
+        });
+
+        Set<String> removedClassFiles = new TreeSet<>();
+        Set<Path> writtenClassFiles = new LinkedHashSet<>();
+        Set<String> compiled = new HashSet<>();
+        Set<String> retired = new HashSet<>(removedSources);
+        while (!toCompile.isEmpty() || !retired.isEmpty()) {
+            Set<String> affectedSources = new HashSet<>(toCompile);
+            affectedSources.addAll(retired);
+            Map<String, ClassInfo> before = new HashMap<>();
+            classes.values().removeIf(c -> {
+                if (affectedSources.contains(c.source)) {
+                    before.put(c.name, c);
+                    removedClassFiles.add(c.classFileName());
+                    return true;
+                }
+                return false;
+            });
+            before.values().forEach(c -> delete(classesDir.resolve(c.classFileName())));
+            retired.forEach(sources::remove);
+            retired.clear();
+
+            Map<String, ClassInfo> after = new HashMap<>();
+            if (!toCompile.isEmpty()) {
+                var generated = compiler.compile(toCompile.stream().map(current::get).toList(), false);
+                if (generated == null) {
+                    discard();
+                    return new Result(false, false, removedClassFiles, writtenClassFiles);
+                }
+                for (Path classFile : generated) {
+                    var info = analyze(classFile);
+                    if (info.source == null || !current.containsKey(info.source)) {
+                        // A class we can't map back to its source file, we can't track it so rebuild everything
+                        return fullBuild(current, compiler);
+                    }
+                    classes.put(info.name, info);
+                    after.put(info.name, info);
+                    removedClassFiles.remove(info.classFileName());
+                    writtenClassFiles.add(classFile);
+                    compiled.add(info.source);
+                }
+                toCompile.forEach(rel -> sources.put(rel, Stamp.of(current.get(rel))));
+                compiled.addAll(toCompile);
+            }
+
+            Set<String> changedClasses = new HashSet<>();
+            Set<String> changedMembers = new HashSet<>();
+            // classes that gained, lost or changed a member
+            Set<String> reshaped = new HashSet<>();
+            Set<String> names = new HashSet<>(before.keySet());
+            names.addAll(after.keySet());
+            for (String name : names) {
+                var was = before.get(name);
+                var is = after.get(name);
+                if (was != null && (is == null || !is.constants.entrySet().containsAll(was.constants.entrySet()))) {
+                    // javac inlined the old constant value into dependents, we can't find them
+                    if (!was.constants.isEmpty()) {
+                        return fullBuild(current, compiler);
+                    }
+                }
+                if (was == null || is == null || !was.header.equals(is.header)) {
+                    changedClasses.add(name);
+                } else {
+                    Set<String> keys = new HashSet<>(was.members.keySet());
+                    keys.addAll(is.members.keySet());
+                    keys.stream()
+                            .filter(k -> !Objects.equals(was.members.get(k), is.members.get(k)))
+                            .forEach(k -> {
+                                changedMembers.add(name + "." + memberName(k));
+                                reshaped.add(name);
+                            });
+                }
+            }
+            // A member reference names the class it was resolved through, which may be a subclass of the declaring class
+            Map<String, Set<String>> subclasses = new HashMap<>();
+            classes.values().forEach(c -> c.supertypes.forEach(s -> subclasses.computeIfAbsent(s, _ -> new HashSet<>()).add(c.name)));
+            for (String member : List.copyOf(changedMembers)) {
+                int dot = member.lastIndexOf('.');
+                inherit(member.substring(0, dot), member.substring(dot + 1), subclasses, changedMembers, new HashSet<>());
+            }
+            for (String changed : List.copyOf(changedClasses)) {
+                inherit(changed, null, subclasses, changedClasses, new HashSet<>());
+            }
+            // Subtypes need not reference a member to depend on it: a new abstract method must be implemented,
+            // a new or now final method may clash with one they declare. Recompile all of them.
+            Set<String> subtypes = new HashSet<>();
+            for (String changed : reshaped) {
+                inherit(changed, null, subclasses, subtypes, new HashSet<>());
+            }
+
+            toCompile.clear();
+            classes.values().stream()
+                    .filter(c -> !compiled.contains(c.source))
+                    .filter(c -> subtypes.contains(c.name)
+                            || c.classRefs.stream().anyMatch(changedClasses::contains)
+                            || c.memberRefs.stream().anyMatch(changedMembers::contains))
+                    .forEach(c -> toCompile.add(c.source));
+        }
+        save();
+        return new Result(true, false, removedClassFiles, writtenClassFiles);
+    }
+
+    private Result fullBuild(Map<String, Path> current, Compiler compiler) {
+        sources.clear();
+        classes.clear();
+        var generated = compiler.compile(List.copyOf(current.values()), true);
+        if (generated == null) {
+            discard();
+            return new Result(false, true, Set.of(), Set.of());
+        }
+        for (Path classFile : generated) {
+            var info = analyze(classFile);
+            classes.put(info.name, info);
+        }
+        current.forEach((rel, path) -> sources.put(rel, Stamp.of(path)));
+        save();
+        return new Result(true, true, Set.of(), new LinkedHashSet<>(generated));
+    }
+
+    private static void inherit(String owner, String member, Map<String, Set<String>> subclasses, Set<String> into, Set<String> seen) {
+        for (String sub : subclasses.getOrDefault(owner, Set.of())) {
+            if (seen.add(sub)) {
+                into.add(member == null ? sub : sub + "." + member);
+                inherit(sub, member, subclasses, into, seen);
+            }
+        }
+    }
+
+    private static String memberName(String key) {
+        int end = key.indexOf(':');
+        if (end < 0) {
+            end = key.indexOf('(');
+        }
+        return end < 0 ? key : key.substring(0, end);
+    }
+
+    private String relative(Path source) {
+        return sourceRoot.relativize(source).toString().replace('\\', '/');
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Matches class names inside descriptors and generic signatures
+    private static final Pattern descriptorClass = Pattern.compile("L([^;<>:]+)[;<]");
+
+    static ClassInfo analyze(Path classFile) {
+        try {
+            return analyze(Files.readAllBytes(classFile));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static ClassInfo analyze(byte[] classBytes) {
+        return analyze(ClassFile.of().parse(classBytes));
+    }
+
+    static ClassInfo analyze(ClassModel model) {
+        String name = model.thisClass().asInternalName();
+        int slash = name.lastIndexOf('/');
+        String pkg = slash < 0 ? "" : name.substring(0, slash + 1);
+        String source = model.findAttribute(Attributes.sourceFile())
+                .map(sf -> pkg + sf.sourceFile().stringValue())
+                .orElse(null);
+
+        List<String> supertypes = new ArrayList<>();
+        model.superclass().ifPresent(s -> supertypes.add(s.asInternalName()));
+        model.interfaces().forEach(i -> supertypes.add(i.asInternalName()));
+
+        Set<String> classRefs = new TreeSet<>();
+        Set<String> memberRefs = new TreeSet<>();
+        for (PoolEntry entry : model.constantPool()) {
+            if (entry instanceof ClassEntry classEntry) {
+                classRefs.add(classEntry.asInternalName());
+            } else if (entry instanceof MemberRefEntry memberRef) {
+                memberRefs.add(memberRef.owner().asInternalName() + "." + memberRef.name().stringValue());
+            } else if (entry instanceof Utf8Entry utf8 && descriptorClass.matcher(utf8.stringValue()) instanceof Matcher matcher) {
+                while (matcher.find()) {
+                    classRefs.add(matcher.group(1));
+                }
+            }
+        }
+        classRefs.remove(name);
+
+        Map<String, String> members = new TreeMap<>();
+        Map<String, String> constants = new TreeMap<>();
+        Set<String> visible = new TreeSet<>();
+        for (FieldModel field : model.fields()) {
+            String key = field.fieldName().stringValue() + ":" + field.fieldType().stringValue();
+            String constant = field.findAttribute(Attributes.constantValue())
+                    .map(cv -> String.valueOf(cv.constant().constantValue()))
+                    .orElse(null);
+            if (constant != null) {
+                constants.put(key, constant);
+            }
+            members.put(key, hash(field.flags().flagsMask() + " " + signature(field) + " " + annotations(field) + " " + constant));
+            if (isVisible(field.flags().flagsMask())) {
+                visible.add(key);
+            }
+        }
+        for (MethodModel method : model.methods()) {
+            String key = method.methodName().stringValue() + method.methodType().stringValue();
+            String exceptions = method.findAttribute(Attributes.exceptions())
+                    .map(e -> e.exceptions().stream().map(ClassEntry::asInternalName).collect(Collectors.joining(",")))
+                    .orElse("");
+            String annotationDefault = method.findAttribute(Attributes.annotationDefault())
+                    .map(ad -> render(ad.defaultValue()))
+                    .orElse("");
+            members.put(key, hash(method.flags().flagsMask() + " " + signature(method) + " " + exceptions
+                    + " " + annotations(method) + " " + annotationDefault));
+            if (isVisible(method.flags().flagsMask())) {
+                visible.add(key);
+            }
+        }
+        String permitted = model.findAttribute(Attributes.permittedSubclasses())
+                .map(p -> p.permittedSubclasses().stream().map(ClassEntry::asInternalName).collect(Collectors.joining(",")))
+                .orElse("");
+        String header = hash(model.flags().flagsMask() + " " + supertypes + " " + signature(model)
+                + " " + annotations(model) + " " + permitted);
+        String abi = isVisible(model.flags().flagsMask())
+                ? hash(header + visible.stream().map(k -> k + "=" + members.get(k)).collect(Collectors.joining(" ")))
+                : "";
+        return new ClassInfo(name, source, supertypes, classRefs, memberRefs, header, members, constants, abi);
+    }
+
+    private static boolean isVisible(int flags) {
+        return (flags & (ClassFile.ACC_PUBLIC | ClassFile.ACC_PROTECTED)) != 0;
+    }
+
+    /*
+     * The API/ABI hash of the whole jar, changes only when a public or protected declaration changes,
+     * never for method bodies or private members.
+     */
+    String abi() {
+        return abi(classes.values());
+    }
+
+    static String abi(Collection<ClassInfo> classes) {
+        return hash(classes.stream()
+                .sorted(Comparator.comparing(c -> c.name))
+                .filter(c -> !c.abi.isEmpty())
+                .map(c -> c.name + "=" + c.abi)
+                .collect(Collectors.joining("\n")));
+    }
+
+    static String signature(AttributedElement element) {
+        return element.findAttribute(Attributes.signature()).map(s -> s.signature().stringValue()).orElse("");
+    }
+
+    static String annotations(AttributedElement element) {
+        List<Annotation> annotations = new ArrayList<>();
+        element.findAttribute(Attributes.runtimeVisibleAnnotations()).ifPresent(a -> annotations.addAll(a.annotations()));
+        element.findAttribute(Attributes.runtimeInvisibleAnnotations()).ifPresent(a -> annotations.addAll(a.annotations()));
+        return annotations.stream().map(IncrementalJavac::render).collect(Collectors.joining(","));
+    }
+
+    static String render(Annotation annotation) {
+        return "@" + annotation.className().stringValue() + annotation.elements().stream()
+                .map(e -> e.name().stringValue() + "=" + render(e.value()))
+                .collect(Collectors.joining(",", "(", ")"));
+    }
+
+    static String render(AnnotationValue value) {
+        return switch (value) {
+            case AnnotationValue.OfConstant constant -> String.valueOf(constant.resolvedValue());
+            case AnnotationValue.OfClass c -> c.className().stringValue();
+            case AnnotationValue.OfEnum e -> e.className().stringValue() + "." + e.constantName().stringValue();
+            case AnnotationValue.OfAnnotation a -> render(a.annotation());
+            case AnnotationValue.OfArray a -> a.values().stream().map(IncrementalJavac::render).collect(Collectors.joining(",", "{", "}"));
+        };
+    }
+
+    static String hash(String s) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 12);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Line oriented state file, one record per line, fields separated by tabs.
+     *    options <key>
+     *    upstream <key>
+     *    source <path> <size> <mtime>
+     *    class <name> <source> <header> <abi>
+     *    super|ref|member <name> <value>
+     *    api|constant <name> <key> <value>
+     */
+    private void load() {
+        if (!Files.exists(statePath)) {
+            return;
+        }
+        try {
+            Map<String, List<String[]>> pending = new HashMap<>();
+            for (String line : Files.readAllLines(statePath)) {
+                var f = line.split("\t", -1);
+                switch (f[0]) {
+                    case "options" -> optionsKey = f[1];
+                    case "upstream" -> upstreamKey = f[1];
+                    case "source" -> sources.put(f[1], new Stamp(Long.parseLong(f[2]), Long.parseLong(f[3])));
+                    case "class" -> classes.put(f[1], new ClassInfo(f[1], f[2].isEmpty() ? null : f[2], new ArrayList<>(),
+                            new TreeSet<>(), new TreeSet<>(), f[3], new TreeMap<>(), new TreeMap<>(), f[4]));
+                    default -> pending.computeIfAbsent(f[1], _ -> new ArrayList<>()).add(f);
+                }
+            }
+            pending.forEach((name, records) -> {
+                var info = classes.get(name);
+                if (info != null) {
+                    records.forEach(f -> {
+                        switch (f[0]) {
+                            case "super" -> info.supertypes.add(f[2]);
+                            case "ref" -> info.classRefs.add(f[2]);
+                            case "member" -> info.memberRefs.add(f[2]);
+                            case "api" -> info.members.put(f[2], f[3]);
+                            case "constant" -> info.constants.put(f[2], f[3]);
+                            default -> {
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            // Unreadable state just means a full build
+            optionsKey = null;
+            sources.clear();
+            classes.clear();
+        }
+    }
+
+    private void save() {
+        var sb = new StringBuilder();
+        sb.append("options\t").append(optionsKey).append('\n');
+        sb.append("upstream\t").append(upstreamKey).append('\n');
+        sources.forEach((rel, stamp) -> sb.append("source\t").append(rel).append('\t')
+                .append(stamp.size()).append('\t').append(stamp.lastModified()).append('\n'));
+        classes.values().forEach(c -> {
+            sb.append("class\t").append(c.name).append('\t').append(c.source == null ? "" : c.source).append('\t').append(c.header)
+                    .append('\t').append(c.abi).append('\n');
+            c.supertypes.forEach(s -> sb.append("super\t").append(c.name).append('\t').append(s).append('\n'));
+            c.classRefs.forEach(r -> sb.append("ref\t").append(c.name).append('\t').append(r).append('\n'));
+            c.memberRefs.forEach(m -> sb.append("member\t").append(c.name).append('\t').append(m).append('\n'));
+            c.members.forEach((k, v) -> sb.append("api\t").append(c.name).append('\t').append(k).append('\t').append(v).append('\n'));
+            c.constants.forEach((k, v) -> sb.append("constant\t").append(c.name).append('\t').append(k).append('\t')
+                    .append(v.replace('\t', ' ').replace('\n', ' ')).append('\n'));
+        });
+        try {
+            Files.createDirectories(statePath.getParent());
+            Files.writeString(statePath, sb.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * After a failed compile the classes dir no longer matches our state, so the next build must be a full one.
+     */
+    void discard() {
+        optionsKey = null;
+        sources.clear();
+        classes.clear();
+        delete(statePath);
+    }
+}
@@ -1,7 +1,22 @@
 package job;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.spi.ToolProvider;
 
 public class JExtract extends Jar {
     final JExtractOptProvider optProvider;
@@ -19,33 +34,272 @@ public class JExtract extends Jar {
         return id.path().resolve("src/main/java");
     }
 
+    ForkExec.Opts jextractOpts() {
+        var opts = ForkExec.Opts.of("jextract").add(
+                "--target-package", id().shortHyphenatedName(),
+                "--output", javaSourcePath().toString()
+        );
+        optProvider.jExtractOpts(opts);
+        return opts;
+    }
+
+    /*
+     * jextract rewrites every source, so there is nothing to gain from an incremental compile
+     */
+    @Override
+    protected boolean classesInMemory() {
+        return true;
+    }
+
+    @Override
+    public List<Path> inputs() {
+        // The generated sources are our output, what we generate them from is the headers named in the jextract options
+        return headers(jextractOpts().opts);
+    }
+
+    private static final Pattern include = Pattern.compile("^\\s*#\\s*(?:include|include_next|import)\\s*([<\"])([^>\"]+)[>\"]");
+
+    /*
+     * The headers named in the options and, transitively, those they include which we can find in the including
+     * header's directory or the --include-dir (or -I) directories. Includes we can't resolve are the compiler's own.
+     */
+    static List<Path> headers(List<String> opts) {
+        List<Path> includeDirs = new ArrayList<>();
+        List<Path> roots = new ArrayList<>();
+        for (int i = 0; i < opts.size(); i++) {
+            var opt = opts.get(i);
+            if ((opt.equals("--include-dir") || opt.equals("-I")) && i + 1 < opts.size()) {
+                for (String dir : opts.get(++i).replace("\"", "").split("[;" + File.pathSeparator + "]")) {
+                    if (!dir.isEmpty()) {
+                        includeDirs.add(Path.of(dir));
+                    }
+                }
+            } else if (opt.startsWith("-I") && opt.length() > 2) {
+                includeDirs.add(Path.of(opt.substring(2)));
+            } else if (opt.endsWith(".h") && !opt.startsWith("-")) {
+                roots.add(Path.of(opt));
+            }
+        }
+        Set<Path> seen = new LinkedHashSet<>();
+        var pending = new ArrayDeque<>(roots);
+        while (!pending.isEmpty()) {
+            var header = pending.poll().normalize();
+            if (!seen.add(header) || !Files.isRegularFile(header)) {
+                continue;
+            }
+            try (var lines = Files.lines(header, StandardCharsets.ISO_8859_1)) {
+                lines.map(include::matcher).filter(Matcher::find).forEach(matcher -> {
+                    var name = matcher.group(2);
+                    List<Path> candidates = new ArrayList<>();
+                    if (matcher.group(1).equals("\"") && header.getParent() != null) {
+                        candidates.add(header.getParent().resolve(name));
+                    }
+                    includeDirs.forEach(dir -> candidates.add(dir.resolve(name)));
+                    candidates.stream().filter(Files::isRegularFile).findFirst().ifPresent(pending::add);
+                });
+            } catch (IOException | UncheckedIOException e) {
+                // unreadable, we still have its path, size and mtime
+            }
+        }
+        return seen.stream().filter(Files::isRegularFile).toList();
+    }
+
+    private Path stampPath() {
+        return id().project().buildPath().resolve(id().fullHyphenatedName() + ".jextract");
+    }
+
+    // The jextract options and the path, size and mtime of every header they reach
+    private String jextractKey(List<String> opts) {
+        var sb = new StringBuilder(String.join(" ", opts)).append('\n');
+        for (Path header : headers(opts)) {
+            try {
+                sb.append(header).append(' ').append(Files.size(header)).append(' ').append(Files.getLastModifiedTime(header).toMillis()).append('\n');
+            } catch (IOException e) {
+                sb.append(header).append(" unreadable\n");
+            }
+        }
+        return IncrementalJavac.hash(sb.toString());
+    }
+
+    // What the compile of the generated sources depends upon other than the sources themselves
+    private String javacKey() {
+        return IncrementalJavac.hash(String.join(" ", super.options()) + "\n" + upstreamKey());
+    }
+
+    private List<String> readStamp() {
+        try {
+            return Files.exists(stampPath()) ? Files.readAllLines(stampPath()) : List.of();
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    private void writeStamp(String jextractKey, String javacKey) {
+        try {
+            Files.writeString(stampPath(), jextractKey + "\n" + javacKey + "\n");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean hasSources() {
+        try (var files = Files.walk(javaSourcePath())) {
+            return files.anyMatch(p -> p.toString().endsWith(".java"));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public List<Path> outputs() {
+        return List.of(javaSourcePath(), jarFile());
+    }
+
+    @Override
+    public List<Path> cachedOutputs() {
+        List<Path> outputs = new ArrayList<>(List.of(javaSourcePath()));
+        outputs.addAll(super.cachedOutputs());
+        return outputs;
+    }
+
+    @Override
+    public List<String> options() {
+        List<String> options = new ArrayList<>(jextractOpts().opts);
+        options.addAll(super.options());
+        return options;
+    }
+
     @Override
     public boolean build() {
         try {
+            var opts = jextractOpts();
+            var jextractKey = jextractKey(opts.opts);
+            var javacKey = javacKey();
+            var stamp = readStamp();
+            if (stamp.size() == 2 && stamp.getFirst().equals(jextractKey) && Files.isDirectory(javaSourcePath()) && hasSources()) {
+                // Leave the generated sources (and their mtimes) alone, and compile them only if something else changed
+                if (stamp.get(1).equals(javacKey) && Files.isRegularFile(jarFile())) {
+                    id().project().reporter.progress(this, "headers and options unchanged");
+                    return true;
+                }
+                id().project().reporter.progress(this, "headers unchanged, skipping jextract");
+                boolean compiled = super.build();
+                if (compiled) {
+                    writeStamp(jextractKey, javacKey);
+                }
+                return compiled;
+            }
+            id.project().rmdir(stampPath());
             id.project().mkdir(javaSourcePath());
-            var opts = ForkExec.Opts.of("jextract").add(
-                    "--target-package", id().shortHyphenatedName(),
-                    "--output", javaSourcePath().toString()
-            );
-            optProvider.jExtractOpts(opts);
             optProvider.writeCompilerFlags(id().project().rootPath());
             id().project().reporter.command(this, opts.toString());
-            System.out.println(String.join(" ", opts.toString()));
             id().project().reporter.progress(this, "extracting");
-            var result= ForkExec.forkExec(this, id.project().rootPath(),opts);
-            result.stdErrAndOut().forEach((line)->{
-                id().project().reporter.warning(this, line);
-            });
-            super.build();
-            return result.status()==0;
+            ForkExec.Result result;
+            try (var _ = id().project().trace().phase(this, "jextract")) {
+                result = jextract(opts, (line) -> id().project().reporter.info(this, line));
+            }
+            if (result.status() != 0) {
+                id().project().reporter.error(this, opts + " failed" + (result.log() == null ? "" : " (see " + result.log() + ")"));
+            }
+            boolean compiled = super.build();
+            if (compiled && result.status() == 0) {
+                writeStamp(jextractKey, javacKey);
+            }
+            return compiled && result.status()==0;
         } catch (Exception e) {
             throw new IllegalStateException(e);
         }
     }
 
+    /*
+     * jextract's ToolProvider, if the build JVM was started with jextract on its module path
+     * (--module-path <jextract>/lib --add-modules org.openjdk.jextract), in which case we run it in process and
+     * only pay for its JVM startup and class loading once. Otherwise, or if the build JVM isn't running in the
+     * root (see inRoot()), we fork the jextract launcher. -Djob.jextract.fork=true always forks.
+     */
+    private static final ToolProvider jextractTool = Boolean.getBoolean("job.jextract.fork")
+            ? null
+            : ToolProvider.findFirst("jextract").orElse(null);
+
+    // We don't know that libclang, or jextract's statics, are safe to use from several threads at once
+    private static final Object jextractLock = new Object();
+
+    ForkExec.Result jextract(ForkExec.Opts opts, Consumer<String> lineConsumer) {
+        if (jextractTool == null || !inRoot()) {
+            return ForkExec.forkExec(this, id.project().rootPath(), opts, lineConsumer);
+        }
+        var args = opts.opts.subList(1, opts.opts.size()).toArray(String[]::new);
+        var tail = new ArrayDeque<String>();
+        int status;
+        try (var out = new PrintWriter(new LineWriter(line -> {
+            if (tail.size() == ForkExec.tailLines) {
+                tail.removeFirst();
+            }
+            tail.addLast(line);
+            lineConsumer.accept(line);
+        }))) {
+            synchronized (jextractLock) {
+                status = jextractTool.run(out, out, args);
+            }
+        }
+        return new ForkExec.Result(this, id.project().rootPath(), opts, status, new ArrayList<>(tail), null);
+    }
+
+    /*
+     * libclang reads the compile_flags.txt we write to the root from its working directory, which for a forked
+     * jextract is the root, and in process is the build JVM's (a daemon's or an IDE's need not be the root).
+     */
+    private boolean inRoot() {
+        try {
+            return Path.of(System.getProperty("user.dir")).toRealPath().equals(id().project().rootPath().toRealPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /*
+     * Hands on each line as it is completed, so in process jextract's output streams as a forked one's does
+     */
+    static final class LineWriter extends Writer {
+        private final Consumer<String> lineConsumer;
+        private final StringBuilder line = new StringBuilder();
+
+        LineWriter(Consumer<String> lineConsumer) {
+            this.lineConsumer = lineConsumer;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                char c = chars[i];
+                if (c == '\n') {
+                    int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1 : line.length();
+                    lineConsumer.accept(line.substring(0, end));
+                    line.setLength(0);
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            if (!line.isEmpty()) {
+                lineConsumer.accept(line.toString());
+                line.setLength(0);
+            }
+        }
+    }
+
     @Override
     public boolean clean() {
-        return false;
+        id().project().rmdir(stampPath());
+        // and the jar, classes and abi we compiled from the generated sources
+        return super.clean();
     }
 
     static public JExtract extract(Project.Id id, Set<Dependency> dependencies) {
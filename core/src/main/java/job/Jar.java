@@ -7,21 +7,22 @@ import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
-import javax.tools.ToolProvider;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class Jar extends DependencyImpl<Jar> implements Dependency.Buildable, Dependency.WithPath, Dependency.ExecutableJar {
     final Set<Path> exclude;
@@ -86,11 +87,34 @@ public class Jar extends DependencyImpl<Jar> implements Dependency.Buildable, De
     @Override
     public boolean clean() {
         id().project().clean(null, classesDir(), jarFile());
+        id().project().rmdir(incrementalStatePath(), abiPath());
         return true;
     }
 
     @Override
-    public boolean build() {
+    public List<Path> inputs() {
+        return List.of(javaSourcePath(), javaResourcePath());
+    }
+
+    @Override
+    public List<Path> outputs() {
+        return List.of(jarFile());
+    }
+
+    @Override
+    public List<Path> cachedOutputs() {
+        // The ABI for our dependents, and the classes and state an incremental compile starts from
+        return List.of(jarFile(), abiPath(), incrementalStatePath(), classesDir());
+    }
+
+    @Override
+    public List<String> options() {
+        List<String> options = new ArrayList<>(javacOpts());
+        exclude.stream().map(Path::toString).sorted().forEach(options::add);
+        return options;
+    }
+
+    protected List<String> javacOpts() {
         List<String> opts = new ArrayList<>(
                 List.of(
                         "--source=26",
@@ -111,98 +135,251 @@ public class Jar extends DependencyImpl<Jar> implements Dependency.Buildable, De
                         "--source-path=" + javaSourcePathName()
                 )
         );
-        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
-
-        id().project().clean(this, classesDir());
-
-        if (Files.exists(javaSourcePath())) {
-            try (var files = Files.walk(javaSourcePath())) {
-                var listOfSources = files.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".java") && !exclude.contains(p)).map(JavaSource::new).toList();
-                id().project().reporter.command(this, "javac " +
-                        String.join(" ", opts) + " " + String.join(" ",
-                        listOfSources.stream().map(JavaSource::getName).collect(Collectors.toList())));
-
-
-                var diagnosticListener = new DiagnosticListener<JavaFileObject>() {
-                    @Override
-                    public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
-                        if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
-                            id().project().reporter.error(Jar.this, diagnostic.toString());
-                        } else if (diagnostic.getKind() == Diagnostic.Kind.WARNING) {
-                            id().project().reporter.warning(Jar.this, diagnostic.toString());
-                        } else if (diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
-                            id().project().reporter.warning(Jar.this, "!!" + diagnostic.toString());
-                        } else if (diagnostic.getKind() == Diagnostic.Kind.NOTE) {
-                            id().project().reporter.note(Jar.this, diagnostic.toString());
-                        } else {
-                            id().project().reporter.warning(Jar.this, diagnostic.getKind() + ":" + diagnostic.toString());
-                        }
+        return opts;
+    }
+
+    @Override
+    public boolean build() {
+        if (!Files.exists(javaSourcePath())) {
+            return true;
+        }
+        List<String> opts = javacOpts();
+        List<Path> sources;
+        try (var files = Files.walk(javaSourcePath())) {
+            sources = files.filter(p -> Files.isRegularFile(p) && p.toString().endsWith(".java") && !exclude.contains(p)).sorted().toList();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (classesInMemory()) {
+            return buildInMemory(opts, sources);
+        }
+        var incremental = new IncrementalJavac(incrementalStatePath(), javaSourcePath(), classesDir());
+        var result = incremental.build(sources, String.join(" ", opts), upstreamKey(), (toCompile, full) -> {
+            if (full) {
+                id().project().clean(this, classesDir());
+                id().project().mkdir(classesDir());
+                return compile(opts, toCompile);
+            } else {
+                return compile(withClassesOnClassPath(opts), toCompile);
+            }
+        });
+        if (!result.ok()) {
+            return false;
+        }
+        try {
+            Files.writeString(abiPath(), incremental.abi());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if (result.full() || !Files.isRegularFile(jarFile())) {
+            id().project().reporter.progress(this, "compiled " + sources.size() + " file" + (sources.size() > 1 ? "s" : "") + " to " + jarFile().getFileName());
+            writeJar(null);
+        } else {
+            // the jar is written whole from the classes dir, as a full build writes it, so the two give the same bytes
+            id().project().reporter.progress(this, "recompiled " + result.writtenClassFiles().size() + " class"
+                    + (result.writtenClassFiles().size() == 1 ? "" : "es") + ", removed " + result.removedClassFiles().size()
+                    + ", rewriting " + jarFile().getFileName());
+            writeJar(null);
+        }
+        return true;
+    }
+
+    /*
+     * When true we compile into memory and write the jar straight from the class bytes, without a classes dir.
+     * Saves writing and re-reading every class file, at the cost of always compiling every source, which is
+     * what we end up doing for jextracted code anyway (JExtract turns it on). Elsewhere -Djob.classesInMemory=true
+     */
+    protected boolean classesInMemory() {
+        return Boolean.getBoolean("job.classesInMemory");
+    }
+
+    private boolean buildInMemory(List<String> opts, List<Path> sources) {
+        // Nothing incremental survives, so the next build to use a classes dir will be a full one
+        id().project().rmdir(classesDir(), incrementalStatePath());
+        id().project().mkdir(id().project().buildPath());
+        List<String> inMemoryOpts = new ArrayList<>();
+        for (int i = 0; i < opts.size(); i++) {
+            if (opts.get(i).equals("-d")) {
+                i++;
+            } else {
+                inMemoryOpts.add(opts.get(i));
+            }
+        }
+        Map<String, byte[]> classes = new TreeMap<>();
+        if (compile(inMemoryOpts, sources, classes) == null) {
+            return false;
+        }
+        try {
+            Files.writeString(abiPath(), IncrementalJavac.abi(classes.values().stream().map(IncrementalJavac::analyze).toList()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        id().project().reporter.progress(this, "compiled " + sources.size() + " file" + (sources.size() > 1 ? "s" : "") + " to " + jarFile().getFileName());
+        writeJar(classes);
+        return true;
+    }
+
+    private List<Path> compile(List<String> opts, List<Path> sources) {
+        return compile(opts, sources, null);
+    }
+
+    /*
+     * Compiles the given sources, returning the class files javac wrote, or null if it reported errors.
+     * If inMemory is not null the class files are put there (by jar entry name) instead, and the list is empty.
+     */
+    private List<Path> compile(List<String> opts, List<Path> sources, Map<String, byte[]> inMemory) {
+        var javacFiles = id().project().javacFiles();
+        JavaCompiler javac = javacFiles.javac();
+        // The class path is served by the shared JavacFiles archive cache rather than by javac's own file manager
+        List<String> javacOpts = opts.stream().filter(o -> !o.startsWith("--class-path=")).toList();
+        List<Path> classPath = opts.stream().filter(o -> o.startsWith("--class-path="))
+                .flatMap(o -> Stream.of(o.substring("--class-path=".length()).split(":")))
+                .filter(o -> !o.isEmpty())
+                .map(Path::of)
+                .toList();
+        var listOfSources = sources.stream().map(JavaSource::new).toList();
+        id().project().reporter.command(this, "javac " +
+                String.join(" ", opts) + " " + String.join(" ",
+                listOfSources.stream().map(JavaSource::getName).collect(Collectors.toList())));
+
+        var errors = new AtomicBoolean(false);
+        var diagnosticListener = new DiagnosticListener<JavaFileObject>() {
+            @Override
+            public void report(Diagnostic<? extends JavaFileObject> diagnostic) {
+                if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                    errors.set(true);
+                    id().project().reporter.error(Jar.this, diagnostic.toString());
+                } else if (diagnostic.getKind() == Diagnostic.Kind.WARNING) {
+                    id().project().reporter.warning(Jar.this, diagnostic.toString());
+                } else if (diagnostic.getKind() == Diagnostic.Kind.MANDATORY_WARNING) {
+                    id().project().reporter.warning(Jar.this, "!!" + diagnostic.toString());
+                } else if (diagnostic.getKind() == Diagnostic.Kind.NOTE) {
+                    // formatting a diagnostic isn't free, and jextracted modules have thousands of notes
+                    if (id().project().reporter.enabled(Reporter.Level.NOTE)) {
+                        id().project().reporter.note(Jar.this, diagnostic.toString());
                     }
-                };
-                ((JavacTask) javac.getTask(
-                        new PrintWriter(System.err),
-                        javac.getStandardFileManager(diagnosticListener, null, null),
-                        diagnosticListener,
-                        opts,
-                        null,
-                        listOfSources
-                )).generate().forEach(gc ->
-                        id.project().reporter.note(this, gc.getName())
-                );
-
-                List<Path> dirsToJar = new ArrayList<>(List.of(classesDir()));
-                if (Files.exists(javaResourcePath())) {
-                    dirsToJar.add(javaResourcePath());
+                } else {
+                    id().project().reporter.warning(Jar.this, diagnostic.getKind() + ":" + diagnostic.toString());
                 }
-
-                Manifest manifest = new Manifest();
-                Attributes mainAttributes = manifest.getMainAttributes();
-                mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
-               // mainAttributes.put(Attributes.Name.MAIN_CLASS,   id().shortHyphenatedName()+".Main");
-               // mainAttributes.put(Attributes.Name.IMPLEMENTATION_VENDOR, "HAT's Java Opinionated Builder (JOB)");
-                var jarStream = new JarOutputStream(Files.newOutputStream(jarFile()), manifest);
-                record RootAndPath(Path root, Path path) {
+            }
+        };
+        List<Path> generated = new ArrayList<>();
+        var metrics = id().project().metrics();
+        var threads = ManagementFactory.getThreadMXBean();
+        long start = System.nanoTime();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        long classBytes;
+        try (var phase = id().project().trace().phase(this, "javac");
+             var fileManager = javacFiles.fileManager(classPath)) {
+            ((JavacTask) javac.getTask(
+                    new PrintWriter(System.err),
+                    inMemory == null ? fileManager : javacFiles.inMemory(fileManager, inMemory),
+                    diagnosticListener,
+                    javacOpts,
+                    null,
+                    listOfSources
+            )).generate().forEach(gc -> {
+                if (id.project().reporter.enabled(Reporter.Level.NOTE)) {
+                    id.project().reporter.note(this, gc.getName());
                 }
-                id().project().reporter.command(this, "jar cvf " + jarFile() + " " +
-                        String.join(dirsToJar.stream().map(Path::toString).collect(Collectors.joining(" "))));
-                id().project().reporter.progress(this, "compiled " + listOfSources.size() + " file" + (listOfSources.size() > 1 ? "s" : "") + " to " + jarFile().getFileName());
-
-                dirsToJar.forEach(r -> {
-                    try {
-
-                        Files.walk(r)
-                                .filter(p -> !Files.isDirectory(p))
-                                .map(p -> new RootAndPath(r, p))
-                                .sorted(Comparator.comparing(RootAndPath::path))
-                                .forEach(
-                                        rootAndPath -> {
-                                            try {
-                                                var entry = new JarEntry(rootAndPath.root.relativize(rootAndPath.path).toString());
-                                                entry.setTime(Files.getLastModifiedTime(rootAndPath.path()).toMillis());
-                                                jarStream.putNextEntry(entry);
-                                                Files.newInputStream(rootAndPath.path()).transferTo(jarStream);
-                                                jarStream.closeEntry();
-                                            } catch (IOException e) {
-                                                throw new RuntimeException(e);
-                                            }
-                                        });
-
-
-                    } catch (Exception e) {
-                        throw new RuntimeException(e);
-                    }
-                });
+                if (inMemory == null) {
+                    generated.add(Path.of(gc.toUri()));
+                }
+            });
+            classBytes = inMemory == null
+                    ? generated.stream().mapToLong(p -> p.toFile().length()).sum()
+                    : inMemory.values().stream().mapToLong(bytes -> bytes.length).sum();
+            phase.files(sources.size()).bytes(classBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        metrics.time("job_javac_seconds", this, System.nanoTime() - start);
+        if (cpuStart >= 0) {
+            metrics.time("job_javac_cpu_seconds", this, threads.getCurrentThreadCpuTime() - cpuStart);
+        }
+        metrics.count("job_javac_files_total", this, sources.size());
+        metrics.count("job_class_bytes_total", this, classBytes);
+        return errors.get() ? null : generated;
+    }
+
+    /*
+     * For an incremental compile the unchanged classes are picked up from our own classes dir
+     */
+    private List<String> withClassesOnClassPath(List<String> opts) {
+        List<String> incrementalOpts = new ArrayList<>(opts.stream().filter(o -> !o.startsWith("--class-path=")).toList());
+        var deps = classPath(new Dag(dependencies()).ordered());
+        incrementalOpts.add("--class-path=" + classesDirName() + (deps.isEmpty() ? "" : ":" + deps));
+        return incrementalOpts;
+    }
 
-                jarStream.finish();
-                jarStream.close();
-                return true;
-            } catch (Exception e) {
-                //   println(e.getMessage());
+    /*
+     * Any change to the ABI of an upstream jar means a full compile of this one, body only changes don't
+     */
+    protected String upstreamKey() {
+        var sb = new StringBuilder();
+        new Dag(dependencies()).ordered().stream().filter(d -> d instanceof Jar).map(d -> (Jar) d).forEach(jar ->
+                sb.append(jar.jarFile()).append(' ').append(jar.abi()).append('\n')
+        );
+        return IncrementalJavac.hash(sb.toString());
+    }
+
+    /*
+     * Hash of the public and protected declarations in our jar, written by build(), empty if we have never been built
+     */
+    public String abi() {
+        try {
+            return Files.exists(abiPath()) ? Files.readString(abiPath()) : "";
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Writes the jar from the classes dir, or from the given class bytes if we compiled in memory, plus the resources.
+     */
+    private void writeJar(Map<String, byte[]> classes) {
+        List<Path> dirsToJar = new ArrayList<>();
+        if (classes == null) {
+            dirsToJar.add(classesDir());
+        }
+        if (Files.exists(javaResourcePath())) {
+            dirsToJar.add(javaResourcePath());
+        }
+
+        Manifest manifest = new Manifest();
+        Attributes mainAttributes = manifest.getMainAttributes();
+        mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+       // mainAttributes.put(Attributes.Name.MAIN_CLASS,   id().shortHyphenatedName()+".Main");
+       // mainAttributes.put(Attributes.Name.IMPLEMENTATION_VENDOR, "HAT's Java Opinionated Builder (JOB)");
+        id().project().reporter.command(this, "jar c" + (storedJar() ? "0" : "") + "f " + jarFile() + " " +
+                dirsToJar.stream().map(Path::toString).collect(Collectors.joining(" ")));
+        List<JarWriter.Entry> entries = new ArrayList<>();
+        if (classes != null) {
+            classes.forEach((name, bytes) -> entries.add(JarWriter.Entry.of(name, bytes)));
+        }
+        for (Path root : dirsToJar) {
+            try (var files = Files.walk(root)) {
+                files.filter(p -> !Files.isDirectory(p))
+                        .sorted()
+                        .forEach(p -> entries.add(JarWriter.Entry.of(root.relativize(p).toString().replace('\\', '/'), p)));
+            } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        } else {
-            return true;
         }
+        id().project().javacFiles().invalidate(jarFile());
+        try (var phase = id().project().trace().phase(this, "jar")) {
+            JarWriter.write(jarFile(), manifest, entries, storedJar() ? JarWriter.Method.STORED : JarWriter.Method.DEFLATED);
+            phase.files(entries.size()).bytes(jarFile().toFile().length());
+        }
+        id().project().metrics().count("job_jar_bytes_total", this, jarFile().toFile().length());
+    }
+
+    /*
+     * Uncompressed jars are quicker to write and to read back, and during local iteration they are only ever
+     * read by the next compile or Jar.run. Turn on with -Djob.storedJars=true
+     */
+    protected boolean storedJar() {
+        return Boolean.getBoolean("job.storedJars");
     }
 
     protected String classPath(Set<Dependency> dependencies) {
@@ -218,6 +395,14 @@ public class Jar extends DependencyImpl<Jar> implements Dependency.Buildable, De
                 p instanceof Jar).map(a -> (Jar) a).map(Jar::jarFileName).toList());
     }
 
+    private Path abiPath() {
+        return id().project().buildPath().resolve(id().fullHyphenatedName() + ".abi");
+    }
+
+    private Path incrementalStatePath() {
+        return id().project().buildPath().resolve(id().fullHyphenatedName() + ".incremental");
+    }
+
     private Path classesDir() {
         return id().project().buildPath().resolve(id().fullHyphenatedName() + ".classes");
     }
@@ -267,14 +452,10 @@ public class Jar extends DependencyImpl<Jar> implements Dependency.Buildable, De
         );
         args.forEach(opts::add);
         id().project().reporter.command(this, opts.toString());
-        System.out.println(String.join(" ", opts.toString()));
         id().project().reporter.progress(this, "running");
-        var result = ForkExec.forkExec(this, id().project().rootPath(), opts);
-        result.stdErrAndOut().forEach((line) -> {
-            id().project().reporter.warning(this, line);
-        });
+        var result = ForkExec.forkExec(this, id().project().rootPath(), opts, (line) -> id().project().reporter.output(this, line));
         if (result.status() != 0) {
-            System.out.println("Java failed to execute, is a valid java in your path ? " + id().fullHyphenatedName());
+            id().project().reporter.error(this, "Java failed to execute, is a valid java in your path ? " + id().fullHyphenatedName());
         }
         return result.status() == 0;
     }
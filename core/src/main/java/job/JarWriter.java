@@ -0,0 +1,213 @@
+package job;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+ * Writes a jar whose entries are compressed in parallel.
+ *
+ * ZipOutputStream deflates each entry as it is written, on the writing thread. Here every entry is read and
+ * deflated (or, for STORED jars, just checksummed) into its own buffer on the common pool, then the buffers
+ * are written out in entry order followed by the central directory. No zip64, so < 65535 entries and < 4GB.
+ */
+public class JarWriter {
+    public enum Method {
+        STORED(0), DEFLATED(8);
+
+        final int code;
+
+        Method(int code) {
+            this.code = code;
+        }
+    }
+
+    /*
+     * Every entry is stamped with this time, not when it was compiled or copied, so the same inputs give the same
+     * jar bytes (which is what the action cache, and fingerprints downstream, compare). SOURCE_DATE_EPOCH (seconds)
+     * if it is set, as https://reproducible-builds.org/specs/source-date-epoch/ has it, otherwise 1980-02-01.
+     */
+    static final long time = System.getenv("SOURCE_DATE_EPOCH") instanceof String epoch && epoch.matches("\\d+")
+            ? Long.parseLong(epoch) * 1000
+            : 318211200000L;
+
+    /*
+     * An entry's content is either a file, read when it is compressed, or bytes we already have.
+     */
+    public record Entry(String name, long time, Path file, byte[] bytes) {
+        public static Entry of(String name, Path file) {
+            return new Entry(name, JarWriter.time, file, null);
+        }
+
+        public static Entry of(String name, byte[] bytes) {
+            return new Entry(name, JarWriter.time, null, bytes);
+        }
+
+        byte[] content() {
+            try {
+                return bytes != null ? bytes : Files.readAllBytes(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private record Compressed(Entry entry, byte[] name, Method method, long crc, long size, byte[] data) {
+    }
+
+    public static void write(Path jar, Manifest manifest, List<Entry> entries, Method method) {
+        var manifestBytes = new ByteArrayOutputStream();
+        try {
+            manifest.write(manifestBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        List<Entry> all = new ArrayList<>();
+        // JarInputStream only finds the manifest if it is (one of) the first entries
+        all.add(Entry.of(JarFile.MANIFEST_NAME, manifestBytes.toByteArray()));
+        entries.stream().filter(e -> !e.name().equals(JarFile.MANIFEST_NAME)).forEach(all::add);
+        if (all.size() >= 0xFFFF) {
+            throw new IllegalStateException("too many entries for " + jar + " " + all.size());
+        }
+        List<Compressed> compressed = all.parallelStream().map(e -> compress(e, method)).toList();
+
+        try (var out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(jar), 1 << 16))) {
+            long[] offsets = new long[compressed.size()];
+            for (int i = 0; i < compressed.size(); i++) {
+                var c = compressed.get(i);
+                offsets[i] = out.count;
+                out.int32(0x04034b50);
+                header(out, c);
+                out.write(c.name);
+                out.write(c.data);
+            }
+            long directory = out.count;
+            for (int i = 0; i < compressed.size(); i++) {
+                var c = compressed.get(i);
+                out.int32(0x02014b50);
+                out.int16(20);              // made by
+                header(out, c);
+                out.int16(0);               // comment length
+                out.int16(0);               // disk
+                out.int16(0);               // internal attributes
+                out.int32(0);               // external attributes
+                out.int32(check(offsets[i], jar));
+                out.write(c.name);
+            }
+            long directorySize = out.count - directory;
+            out.int32(0x06054b50);
+            out.int16(0);
+            out.int16(0);
+            out.int16(compressed.size());
+            out.int16(compressed.size());
+            out.int32(check(directorySize, jar));
+            out.int32(check(directory, jar));
+            out.int16(0);                   // comment length
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The fields common to the local and central headers, from 'version needed' to 'extra length'
+    private static void header(CountingOutputStream out, Compressed c) throws IOException {
+        out.int16(20);                      // version needed
+        out.int16(0x0800);                  // names are UTF-8
+        out.int16(c.method.code);
+        out.int32(dosTime(c.entry.time()));
+        out.int32(c.crc);
+        out.int32(c.data.length);
+        out.int32(c.size);
+        out.int16(c.name.length);
+        out.int16(0);                       // extra length
+    }
+
+    private static Compressed compress(Entry entry, Method method) {
+        var content = entry.content();
+        var crc = new CRC32();
+        crc.update(content);
+        var data = content;
+        if (method == Method.DEFLATED) {
+            var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+                var out = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+                var buffer = new byte[8192];
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+                data = out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+        return new Compressed(entry, entry.name().getBytes(StandardCharsets.UTF_8), method, crc.getValue(), content.length, data);
+    }
+
+    // In UTC rather than the local zone, so where the jar was built doesn't change its bytes either
+    private static long dosTime(long millis) {
+        var t = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+        if (t.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);   // 1980-01-01 00:00
+        }
+        return (long) (t.getYear() - 1980) << 25 | (long) t.getMonthValue() << 21 | (long) t.getDayOfMonth() << 16
+                | (long) t.getHour() << 11 | (long) t.getMinute() << 5 | t.getSecond() >> 1;
+    }
+
+    private static long check(long value, Path jar) {
+        if (value > 0xFFFFFFFFL) {
+            throw new IllegalStateException(jar + " is too large, we don't write zip64");
+        }
+        return value;
+    }
+
+    static final class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        void int16(int v) throws IOException {
+            write(v & 0xff);
+            write((v >>> 8) & 0xff);
+        }
+
+        void int32(long v) throws IOException {
+            int16((int) (v & 0xffff));
+            int16((int) ((v >>> 16) & 0xffff));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
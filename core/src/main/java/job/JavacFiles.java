@@ -0,0 +1,348 @@
+package job;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/*
+ * Shares javac's file managers and an index of the class path jars between Jar compilations.
+ *
+ * StandardJavaFileManagers are pooled (one per concurrent compile) so the platform classes are indexed once,
+ * and class path jars are served from our own cache of opened archives and their package indexes, so a jar
+ * which a dozen modules depend upon has its central directory read once rather than once per module.
+ * An archive is reopened when the jar is rewritten, either because the Jar that owns it tells us (invalidate)
+ * or because its size, mtime or file key no longer match. Project.build closes them all when the build is done.
+ */
+public class JavacFiles {
+    private final JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+    private final ConcurrentLinkedQueue<StandardJavaFileManager> idle = new ConcurrentLinkedQueue<>();
+    private final Map<Path, Archive> archives = new ConcurrentHashMap<>();
+
+    public JavaCompiler javac() {
+        return javac;
+    }
+
+    /*
+     * A file manager for one compilation, close() returns it to the pool.
+     * Directories on the class path are left to javac, and are searched ahead of the jars.
+     */
+    public JavaFileManager fileManager(List<Path> classPath) {
+        var standard = idle.poll();
+        if (standard == null) {
+            standard = javac.getStandardFileManager(null, null, null);
+        }
+        List<Path> dirs = new ArrayList<>();
+        List<Archive> jars = new ArrayList<>();
+        for (Path entry : classPath) {
+            if (Files.isDirectory(entry)) {
+                dirs.add(entry);
+            } else if (Files.isRegularFile(entry)) {
+                jars.add(archive(entry));
+            }
+        }
+        try {
+            standard.setLocationFromPaths(StandardLocation.CLASS_PATH, dirs);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new ClassPathFileManager(standard, jars);
+    }
+
+    /*
+     * Wraps a file manager so that class files are kept in memory, keyed by jar entry name, rather than written to -d.
+     */
+    public JavaFileManager inMemory(JavaFileManager fileManager, Map<String, byte[]> classes) {
+        return new InMemoryClassOutput(fileManager, classes);
+    }
+
+    public void invalidate(Path jar) {
+        var archive = archives.remove(jar);
+        if (archive != null) {
+            archive.close();
+        }
+    }
+
+    /*
+     * Closes the idle file managers and the archives, the next compile opens them again
+     */
+    public void close() {
+        for (var standard = idle.poll(); standard != null; standard = idle.poll()) {
+            try {
+                standard.close();
+            } catch (IOException e) {
+                // we are done with it anyway
+            }
+        }
+        archives.keySet().forEach(this::invalidate);
+    }
+
+    private Archive archive(Path jar) {
+        var stamp = stamp(jar);
+        var archive = archives.get(jar);
+        if (archive == null || !archive.stamp.equals(stamp)) {
+            synchronized (archives) {
+                archive = archives.get(jar);
+                if (archive == null || !archive.stamp.equals(stamp)) {
+                    if (archive != null) {
+                        archive.close();
+                    }
+                    archive = new Archive(jar, stamp);
+                    archives.put(jar, archive);
+                }
+            }
+        }
+        return archive;
+    }
+
+    private static List<Object> stamp(Path path) {
+        try {
+            var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return List.of(attributes.size(), attributes.lastModifiedTime().toMillis(), Objects.requireNonNullElse(attributes.fileKey(), ""));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static final class Archive {
+        final Path path;
+        final List<Object> stamp;
+        final ZipFile zip;
+        final Map<String, List<ArchiveClass>> packages = new HashMap<>();
+
+        Archive(Path path, List<Object> stamp) {
+            this.path = path;
+            this.stamp = stamp;
+            try {
+                this.zip = new ZipFile(path.toFile());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            zip.stream()
+                    .filter(e -> !e.isDirectory() && e.getName().endsWith(".class") && !e.getName().startsWith("META-INF/"))
+                    .filter(e -> !e.getName().equals("module-info.class"))
+                    .forEach(e -> {
+                        var name = e.getName();
+                        int slash = name.lastIndexOf('/');
+                        var pkg = slash < 0 ? "" : name.substring(0, slash).replace('/', '.');
+                        packages.computeIfAbsent(pkg, _ -> new ArrayList<>()).add(new ArchiveClass(this, e));
+                    });
+        }
+
+        void list(String packageName, boolean recurse, List<JavaFileObject> into) {
+            if (recurse) {
+                packages.forEach((pkg, classes) -> {
+                    if (packageName.isEmpty() || pkg.equals(packageName) || pkg.startsWith(packageName + ".")) {
+                        into.addAll(classes);
+                    }
+                });
+            } else {
+                into.addAll(packages.getOrDefault(packageName, List.of()));
+            }
+        }
+
+        void close() {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    static final class ArchiveClass extends SimpleJavaFileObject {
+        final Archive archive;
+        final ZipEntry entry;
+        final String binaryName;
+
+        ArchiveClass(Archive archive, ZipEntry entry) {
+            super(uri(archive, entry), Kind.CLASS);
+            this.archive = archive;
+            this.entry = entry;
+            var name = entry.getName();
+            this.binaryName = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+        }
+
+        // SimpleJavaFileObject insists on a hierarchical URI, so not jar:file:...!/entry
+        private static URI uri(Archive archive, ZipEntry entry) {
+            try {
+                return new URI("file", null, archive.path.toAbsolutePath() + "!/" + entry.getName(), null);
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return archive.zip.getInputStream(entry);
+        }
+
+        @Override
+        public String getName() {
+            return archive.path + "(" + entry.getName() + ")";
+        }
+
+        @Override
+        public long getLastModified() {
+            return entry.getTime();
+        }
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind) {
+            var name = entry.getName();
+            return kind == Kind.CLASS && (name.equals(simpleName + ".class") || name.endsWith("/" + simpleName + ".class"));
+        }
+    }
+
+    static final class InMemoryClass extends SimpleJavaFileObject {
+        final String entryName;
+        final Map<String, byte[]> classes;
+
+        InMemoryClass(String entryName, Map<String, byte[]> classes) {
+            super(URI.create("mem:///" + entryName), Kind.CLASS);
+            this.entryName = entryName;
+            this.classes = classes;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                /*
+     * Closes the idle file managers and the archives, the next compile opens them again
+     */
+    public void close() {
+                    synchronized (classes) {
+                        classes.put(entryName, toByteArray());
+                    }
+                }
+            };
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            byte[] bytes;
+            synchronized (classes) {
+                bytes = classes.get(entryName);
+            }
+            if (bytes == null) {
+                throw new NoSuchFileException(entryName);
+            }
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+
+    static final class InMemoryClassOutput extends ForwardingJavaFileManager<JavaFileManager> {
+        private final Map<String, byte[]> classes;
+
+        InMemoryClassOutput(JavaFileManager fileManager, Map<String, byte[]> classes) {
+            super(fileManager);
+            this.classes = classes;
+        }
+
+        @Override
+        public boolean hasLocation(Location location) {
+            return location == StandardLocation.CLASS_OUTPUT || super.hasLocation(location);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (location == StandardLocation.CLASS_OUTPUT && kind == JavaFileObject.Kind.CLASS) {
+                return new InMemoryClass(className.replace('.', '/') + ".class", classes);
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            if (file instanceof InMemoryClass inMemoryClass) {
+                var name = inMemoryClass.entryName;
+                return name.substring(0, name.length() - ".class".length()).replace('/', '.');
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            if (a instanceof InMemoryClass || b instanceof InMemoryClass) {
+                return a.equals(b);
+            }
+            return super.isSameFile(a, b);
+        }
+    }
+
+    final class ClassPathFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final List<Archive> jars;
+
+        ClassPathFileManager(StandardJavaFileManager standard, List<Archive> jars) {
+            super(standard);
+            this.jars = jars;
+        }
+
+        @Override
+        public boolean hasLocation(Location location) {
+            return location == StandardLocation.CLASS_PATH || super.hasLocation(location);
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            if (location != StandardLocation.CLASS_PATH) {
+                return super.list(location, packageName, kinds, recurse);
+            }
+            List<JavaFileObject> result = new ArrayList<>();
+            super.list(location, packageName, kinds, recurse).forEach(result::add);
+            if (kinds.contains(JavaFileObject.Kind.CLASS)) {
+                jars.forEach(jar -> jar.list(packageName, recurse, result));
+            }
+            return result;
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            return file instanceof ArchiveClass archiveClass ? archiveClass.binaryName : super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            if (a instanceof ArchiveClass || b instanceof ArchiveClass) {
+                return a.equals(b);
+            }
+            return super.isSameFile(a, b);
+        }
+
+        @Override
+        /*
+     * Closes the idle file managers and the archives, the next compile opens them again
+     */
+    public void close() {
+            idle.add(fileManager);
+        }
+    }
+}
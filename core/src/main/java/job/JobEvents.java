@@ -0,0 +1,121 @@
+package job;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/*
+ * JDK Flight Recorder events for the life of each dag node, so build phases line up with GC, safepoints and file
+ * I/O in JDK Mission Control. Creating and committing these is close to free unless a recording is running.
+ *
+ * Pass --jfr to a build (in process or through the daemon) to record it, with the JDK's 'profile' settings, to
+ * build/job.jfr. Or record a build with -XX:StartFlightRecording as usual, the events are in the 'job' category.
+ */
+public class JobEvents {
+    public static final String JFR = "--jfr";
+
+    @Name("job.NodeQueued")
+    @Label("Node Queued")
+    @Category("job")
+    @Description("A node whose dependencies are built, waiting for a worker")
+    @StackTrace(false)
+    static class NodeQueued extends Event {
+        @Label("Node")
+        String node;
+    }
+
+    @Name("job.Node")
+    @Label("Node")
+    @Category("job")
+    @Description("A worker taking a node from start to finish")
+    @StackTrace(false)
+    static class Node extends Event {
+        @Label("Node")
+        String node;
+        @Label("Outcome")
+        @Description("built, up to date, skipped or failed")
+        String outcome;
+        @Label("Queued")
+        @Timespan(Timespan.NANOSECONDS)
+        long queued;
+    }
+
+    @Name("job.Phase")
+    @Label("Phase")
+    @Category("job")
+    @Description("A phase of building a node: cache restore, javac, jar, cmake, jextract ...")
+    @StackTrace(false)
+    static class Phase extends Event {
+        @Label("Node")
+        String node;
+        @Label("Phase")
+        String phase;
+        @Label("Files")
+        long files;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("job.Fork")
+    @Label("Fork")
+    @Category("job")
+    @Description("A process forked for a node, from start to exit")
+    @StackTrace(false)
+    static class Fork extends Event {
+        @Label("Node")
+        String node;
+        @Label("Command")
+        String command;
+        @Label("Pid")
+        long pid;
+        @Label("Exit Status")
+        int status;
+    }
+
+    static String node(Dependency dependency) {
+        return dependency == null ? null : dependency.id().fullHyphenatedName();
+    }
+
+    /*
+     * Wraps a Daemon action, recording to build/job.jfr when the build args include --jfr
+     */
+    static BiConsumer<Project, List<String>> recording(BiConsumer<Project, List<String>> action) {
+        return (project, args) -> {
+            if (!args.contains(JFR)) {
+                action.accept(project, args);
+                return;
+            }
+            try (var recording = new Recording(jdk.jfr.Configuration.getConfiguration("profile"))) {
+                recording.setName("job");
+                recording.start();
+                try {
+                    action.accept(project, args.stream().filter(a -> !a.equals(JFR)).toList());
+                } finally {
+                    if (recording.getState() == RecordingState.RUNNING) {
+                        recording.stop();
+                    }
+                    var jfr = project.buildPath().resolve("job.jfr");
+                    Files.createDirectories(jfr.getParent());
+                    recording.dump(jfr);
+                    project.reporter.info(null, "jfr recording in " + jfr);
+                }
+            } catch (IOException | ParseException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
@@ -0,0 +1,248 @@
+package job;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Counters and timings of build actions, per node and per kind of node (jar, cmake, jextract ...).
+ *
+ * They are readable over JMX (job:type=Metrics,project=<name>) for as long as the build or daemon runs, and
+ * each build writes them to build/metrics.prom in the Prometheus text format, which node-exporter's textfile
+ * collector picks up if pointed at (a copy of) it. Counts are since the JVM started, so a daemon's accumulate
+ * across builds, as Prometheus expects of a counter.
+ */
+public class Metrics implements DynamicMBean {
+    // seconds
+    private static final double[] buckets = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    private static final Map<String, String> help = new LinkedHashMap<>();
+
+    static {
+        help.put("job_node_seconds", "Time to build (or restore) a node");
+        help.put("job_javac_seconds", "Wall time in javac");
+        help.put("job_javac_cpu_seconds", "Cpu time of the thread running javac");
+        help.put("job_javac_files_total", "Source files compiled");
+        help.put("job_class_bytes_total", "Class file bytes written by javac");
+        help.put("job_jar_bytes_total", "Bytes of jars written");
+        help.put("job_forks_total", "Processes forked");
+        help.put("job_fork_seconds", "Lifetime of forked processes");
+        help.put("job_cache_hits_total", "Nodes restored from the action cache");
+        help.put("job_cache_remote_hits_total", "Nodes restored from the remote cache");
+        help.put("job_cache_misses_total", "Nodes the action cache had not seen");
+        help.put("job_hashed_bytes_total", "Input bytes hashed for action cache keys");
+    }
+
+    record Key(String name, String node, String kind) {
+        String labels() {
+            return "{node=\"" + escape(node) + "\",kind=\"" + escape(kind) + "\"}";
+        }
+
+        // label values in the text format escape backslash, double quote and line feed
+        static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    static final class Histogram {
+        final LongAdder[] counts = new LongAdder[buckets.length + 1];
+        final DoubleAdder sum = new DoubleAdder();
+        final LongAdder count = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int i = 0;
+            while (i < buckets.length && value > buckets[i]) {
+                i++;
+            }
+            counts[i].increment();
+            sum.add(value);
+            count.increment();
+        }
+    }
+
+    private final String project;
+    private final Map<Key, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<Key, Histogram> histograms = new ConcurrentHashMap<>();
+
+    Metrics(String project) {
+        this.project = project;
+    }
+
+    public static Metrics of(Project project) {
+        var metrics = new Metrics(project.name());
+        metrics.register();
+        return metrics;
+    }
+
+    public void count(String name, Dependency dependency, long n) {
+        counters.computeIfAbsent(key(name, dependency), _ -> new LongAdder()).add(n);
+    }
+
+    public void time(String name, Dependency dependency, long nanos) {
+        histograms.computeIfAbsent(key(name, dependency), _ -> new Histogram()).observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private static Key key(String name, Dependency dependency) {
+        if (dependency == null) {
+            return new Key(name, "", "");
+        }
+        Class<?> kind = dependency.getClass();
+        while (kind.isAnonymousClass()) {
+            kind = kind.getSuperclass();
+        }
+        return new Key(name, dependency.id().fullHyphenatedName(), kind.getSimpleName().toLowerCase());
+    }
+
+    public String textfile() {
+        var sb = new StringBuilder();
+        help.forEach((name, text) -> {
+            var ourCounters = sorted(counters, name);
+            var ourHistograms = sorted(histograms, name);
+            if (ourCounters.isEmpty() && ourHistograms.isEmpty()) {
+                return;
+            }
+            sb.append("# HELP ").append(name).append(' ').append(text).append('\n');
+            sb.append("# TYPE ").append(name).append(ourCounters.isEmpty() ? " histogram" : " counter").append('\n');
+            ourCounters.forEach((key, counter) -> sb.append(name).append(key.labels()).append(' ').append(counter.sum()).append('\n'));
+            ourHistograms.forEach((key, histogram) -> {
+                var labels = key.labels();
+                long cumulative = 0;
+                for (int i = 0; i <= buckets.length; i++) {
+                    cumulative += histogram.counts[i].sum();
+                    sb.append(name).append("_bucket").append(labels, 0, labels.length() - 1)
+                            .append(",le=\"").append(i == buckets.length ? "+Inf" : Double.toString(buckets[i])).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                sb.append(name).append("_sum").append(labels).append(' ').append(histogram.sum.sum()).append('\n');
+                sb.append(name).append("_count").append(labels).append(' ').append(histogram.count.sum()).append('\n');
+            });
+        });
+        return sb.toString();
+    }
+
+    private static <T> Map<Key, T> sorted(Map<Key, T> metrics, String name) {
+        Map<Key, T> ours = new TreeMap<>(Comparator.comparing(Key::node).thenComparing(Key::kind));
+        metrics.forEach((key, metric) -> {
+            if (key.name().equals(name)) {
+                ours.put(key, metric);
+            }
+        });
+        return ours;
+    }
+
+    /*
+     * Written to a temp file and moved into place, so a scrape never sees half of it
+     */
+    public void write(Path path) {
+        try {
+            Files.createDirectories(path.getParent());
+            var temp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.writeString(temp, textfile());
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void register() {
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName("job:type=Metrics,project=" + ObjectName.quote(project));
+            try {
+                server.registerMBean(this, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // a new Project for the same tree, it takes over
+                server.unregisterMBean(name);
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Over JMX each counter, and each histogram's count and sum, is an attribute named as in the textfile
+     */
+    private Map<String, Number> attributes() {
+        Map<String, Number> attributes = new TreeMap<>();
+        counters.forEach((key, counter) -> attributes.put(key.name() + key.labels(), counter.sum()));
+        histograms.forEach((key, histogram) -> {
+            attributes.put(key.name() + "_count" + key.labels(), histogram.count.sum());
+            attributes.put(key.name() + "_sum" + key.labels(), histogram.sum.sum());
+        });
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        var value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        var attributes = attributes();
+        var list = new AttributeList();
+        for (String name : names) {
+            if (attributes.containsKey(name)) {
+                list.add(new Attribute(name, attributes.get(name)));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        // as a standard MBean does for an attribute without a setter
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        // there are no operations
+        throw new ReflectionException(new NoSuchMethodException(actionName), actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        var infos = attributes().entrySet().stream()
+                .map(e -> new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                        help.getOrDefault(e.getKey().replaceAll("(_count|_sum)?\\{.*", ""), ""), true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+        return new MBeanInfo(Metrics.class.getName(), "job build metrics for " + project, infos, null, null, null);
+    }
+}
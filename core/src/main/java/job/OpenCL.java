@@ -19,13 +19,13 @@ public class OpenCL extends CMakeInfo {
     @Override
     public void jExtractOpts(ForkExec.Opts opts) {
         if (isAvailable()) {
-            if (darwin) {
+            if (darwin()) {
                 opts.add(
                         "--library", ":/System/Library/Frameworks/OpenCL.framework/OpenCL",
                         "--header-class-name", "opencl_h",
-                        fwk + "/OpenCL.framework/Headers/opencl.h"
+                        fwk() + "/OpenCL.framework/Headers/opencl.h"
                 );
-            } else if (linux) {
+            } else if (linux()) {
                 opts.add(
                         "--library", asString("OpenCL_LIBRARY"),
                         "--include-dir","\"/usr/include/linux;/usr/include\"",
@@ -25,10 +25,10 @@ public class OpenGL extends CMakeInfo {
     @Override
     public void jExtractOpts(ForkExec.Opts opts) {
         if (isAvailable()) {
-            if (darwin) {
+            if (darwin()) {
                 List.of("GLUT", "OpenGL").forEach(s -> opts.add("--library", ":/System/Library/Frameworks/" + s + ".framework/" + s));
-                opts.add("--header-class-name", "opengl_h", fwk + "/GLUT.framework/Headers/GLUT.h");
-            } else if (linux) {
+                opts.add("--header-class-name", "opengl_h", fwk() + "/GLUT.framework/Headers/GLUT.h");
+            } else if (linux()) {
                 asSemiSeparatedStringList("OPENGL_LIBRARY").forEach(lib -> opts.add("--library", ":" + lib));
                 opts.add(
                         "--library",":/usr/lib/x86_64-linux-gnu/libglut.so",
@@ -1,21 +1,28 @@
 package job;
 
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class Opt extends DependencyImpl<Opt> implements Dependency.Optional {
-    final boolean available;
+    final CompletableFuture<Boolean> available;
 
     public Opt(Project.Id id, boolean available, Set<Dependency> buildDependencies) {
-        super(id, buildDependencies);
-        this.available = available;
+        this(id, CompletableFuture.completedFuture(available), buildDependencies);
     }
     public Opt(Project.Id id, boolean available, Dependency ... dependencies) {
-        super(id, Set.of(dependencies));
+        this(id, available, Set.of(dependencies));
+    }
+
+    /*
+     * Available once the (probably still running) probe says so
+     */
+    public Opt(Project.Id id, CompletableFuture<Boolean> available, Set<Dependency> buildDependencies) {
+        super(id, buildDependencies);
         this.available = available;
     }
 
     @Override
     public boolean isAvailable() {
-        return available;
+        return available.join();
     }
 }
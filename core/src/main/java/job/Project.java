@@ -4,6 +4,7 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
@@ -15,17 +16,11 @@ import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class Project {
+    /*
+     * Returns at once, the probe runs in the background (or not at all if a recent answer is in build/job.probes)
+     */
     public Dependency.Optional isAvailable(String ...nameAndArgs) {
-        boolean isInPath = false;
-        try {
-
-            var process = new ProcessBuilder().command(nameAndArgs).start();
-            process.waitFor();
-            isInPath = (process.exitValue() == 0);
-        } catch (Exception e) {
-            // We'll take that as a no then  :)
-        }
-        return new Opt(id(nameAndArgs[0]), isInPath, Set.of());
+        return new Opt(id(nameAndArgs[0]), toolProbes().probe(nameAndArgs), Set.of());
     }
 
     public Path dir(String s) {
@@ -191,6 +186,79 @@ public class Project {
 
     public final Reporter reporter;
 
+    private int workers = Integer.getInteger("job.workers", Runtime.getRuntime().availableProcessors());
+
+    public int workers() {
+        return workers;
+    }
+
+    public Project workers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    private ResourceGovernor governor;
+
+    public synchronized ResourceGovernor governor() {
+        if (governor == null) {
+            governor = ResourceGovernor.of(this);
+        }
+        return governor;
+    }
+
+    private final JavacFiles javacFiles = new JavacFiles();
+
+    public JavacFiles javacFiles() {
+        return javacFiles;
+    }
+
+    private Fingerprints fingerprints;
+
+    public synchronized Fingerprints fingerprints() {
+        if (fingerprints == null) {
+            fingerprints = new Fingerprints(buildPath().resolve("job.fingerprints"));
+        }
+        return fingerprints;
+    }
+
+    private Metrics metrics;
+
+    public synchronized Metrics metrics() {
+        if (metrics == null) {
+            metrics = Metrics.of(this);
+        }
+        return metrics;
+    }
+
+    private ToolProbes toolProbes;
+
+    public synchronized ToolProbes toolProbes() {
+        if (toolProbes == null) {
+            toolProbes = new ToolProbes(buildPath().resolve("job.probes"));
+        }
+        return toolProbes;
+    }
+
+    private ActionCache actionCache;
+    private boolean actionCacheChecked;
+
+    /*
+     * Null if the action cache has been turned off (-Djob.cache=false)
+     */
+    public synchronized ActionCache actionCache() {
+        if (!actionCacheChecked) {
+            actionCache = ActionCache.of(this);
+            actionCacheChecked = true;
+        }
+        return actionCache;
+    }
+
+    private Trace trace = new Trace();
+
+    public Trace trace() {
+        return trace;
+    }
+
     public Project(Path root, Reporter reporter) {
         this.rootPath = root;
         if (!Files.exists(root)) {
@@ -261,10 +329,17 @@ public class Project {
         dag.ordered().stream()
                 .filter(d -> d instanceof Dependency.Buildable)
                 .map(d -> (Dependency.Buildable) d)
-                .forEach(Dependency.Buildable::clean);
+                .forEach(buildable -> {
+                    buildable.clean();
+                    fingerprints().forget(buildable);
+                });
         if (all) {
             rmdir(buildPath());
+            fingerprints = null;
+        } else {
+            fingerprints().save();
         }
+        reporter.flush();
         return dag;
     }
 
@@ -273,10 +348,42 @@ public class Project {
     }
 
     public Dag build(Dag dag) {
-        dag.ordered().stream()
-                .filter(d -> d instanceof Dependency.Buildable)
-                .map(d -> (Dependency.Buildable) d)
-                .forEach(Dependency.Buildable::build);
+        dag.pruned().forEach((dependency, because) ->
+                reporter.progress(dependency, "skipped, depends on unavailable " + because.id().projectRelativeHyphenatedName()));
+        trace = new Trace();
+        fingerprints().reset();
+        if (actionCache() != null) {
+            actionCache().reset();
+        }
+        // the build's events at these levels, whatever the reporter shows, -Djob.events=false to turn it off.
+        // Notes (thousands, for jextracted sources) and tool output are only formatted if they are asked for.
+        if (Boolean.parseBoolean(System.getProperty("job.events", "true"))) {
+            reporter.jsonLines(buildPath().resolve("events.jsonl"),
+                    Reporter.levels(System.getProperty("job.events.levels", "command,progress,error,warning,output")));
+        }
+        var dashboard = Boolean.getBoolean("job.dashboard") ? Dashboard.of(this, dag) : null;
+        if (dashboard != null) {
+            reporter.dashboard(dashboard);
+        }
+        try {
+            new DagExecutor(this, workers).execute(dag);
+            trace.report(dag, reporter);
+        } finally {
+            if (dashboard != null) {
+                reporter.dashboard(null);
+                dashboard.save(trace);
+            }
+            if (actionCache() != null && actionCache().remote() != null) {
+                actionCache().remote().drain(Duration.ofSeconds(30));
+            }
+            fingerprints().save();
+            governor().save();
+            metrics().write(buildPath().resolve("metrics.prom"));
+            trace.writeChromeTrace(dag, buildPath().resolve("trace.json"));
+            // the open jars pin files a clean may delete, and a daemon would otherwise hold them until it exits
+            javacFiles.close();
+            reporter.closeJsonLines();
+        }
         return dag;
     }
 
@@ -0,0 +1,189 @@
+package job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Shares action cache entries between machines over HTTP.
+ *
+ * The protocol is just GET and PUT of <url>/<key>, where the body is a zip of the entry directory, which is what
+ * RemoteCacheServer speaks. Fetches run in the background, the DagExecutor starts one as a node is queued, and
+ * one which fails, or takes longer than the timeout, is a miss and the node is built locally. After a fetch which
+ * couldn't reach the server we don't try again for a minute, so a build doesn't wait out the timeout node after
+ * node. Uploads run in the background and the build waits for them (for at most the drain timeout) at its end.
+ *    -Djob.remoteCache=<url>               e.g. http://buildhost:8765/cache, off by default
+ *    -Djob.remoteCache.timeoutMs=<ms>      default 2000
+ *    -Djob.remoteCache.readOnly=true       fetch but never upload, for developer machines
+ */
+public class RemoteCache {
+    private final URI uri;
+    private final Duration timeout;
+    private final boolean readOnly;
+    private final HttpClient client;
+    private final ExecutorService uploads = Executors.newVirtualThreadPerTaskExecutor();
+    private final ConcurrentLinkedQueue<CompletableFuture<?>> pending = new ConcurrentLinkedQueue<>();
+    // System.nanoTime() before which we treat the server as down
+    private volatile long retryAfter = System.nanoTime();
+
+    RemoteCache(URI uri, Duration timeout, boolean readOnly) {
+        this.uri = uri.toString().endsWith("/") ? uri : URI.create(uri + "/");
+        this.timeout = timeout;
+        this.readOnly = readOnly;
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).executor(uploads).build();
+    }
+
+    public static RemoteCache of(Project project) {
+        var url = System.getProperty("job.remoteCache");
+        if (url == null || url.isEmpty()) {
+            return null;
+        }
+        return new RemoteCache(URI.create(url), Duration.ofMillis(Long.getLong("job.remoteCache.timeoutMs", 2000)),
+                Boolean.getBoolean("job.remoteCache.readOnly"));
+    }
+
+    /*
+     * Unpacks the remote entry for key into the (not yet existing) entry directory, completing with false on a miss
+     * or any failure, never exceptionally, and within the timeout.
+     */
+    public CompletableFuture<Boolean> fetch(String key, Path entry) {
+        if (System.nanoTime() - retryAfter < 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        var request = HttpRequest.newBuilder(uri.resolve(key)).timeout(timeout).GET().build();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((response, failure) -> {
+                    if (failure != null) {
+                        // unreachable, slow or broken, we'll build it ourselves, and the next nodes too for a while
+                        retryAfter = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+                        return false;
+                    }
+                    return response.statusCode() == 200 && unpack(response.body(), entry);
+                });
+    }
+
+    private static boolean unpack(byte[] body, Path entry) {
+        var temp = entry.resolveSibling(entry.getFileName() + ".fetch-" + Thread.currentThread().threadId());
+        try {
+            unzip(body, temp);
+            if (!Files.isRegularFile(temp.resolve("manifest"))) {
+                delete(temp);
+                return false;
+            }
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | RuntimeException e) {
+            delete(temp);
+            return Files.isRegularFile(entry.resolve("manifest"));
+        }
+    }
+
+    /*
+     * Uploads the entry in the background
+     */
+    public void upload(String key, Path entry) {
+        if (readOnly) {
+            return;
+        }
+        pending.add(CompletableFuture.runAsync(() -> {
+            try {
+                var request = HttpRequest.newBuilder(uri.resolve(key))
+                        .timeout(timeout.multipliedBy(10))
+                        .PUT(HttpRequest.BodyPublishers.ofByteArray(zip(entry)))
+                        .build();
+                client.send(request, HttpResponse.BodyHandlers.discarding());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | RuntimeException e) {
+                // the next build of these inputs will try again
+            }
+        }, uploads));
+    }
+
+    /*
+     * Waits for background uploads, so a build which is about to exit doesn't lose them
+     */
+    public void drain(Duration atMost) {
+        long deadline = System.nanoTime() + atMost.toNanos();
+        for (var upload = pending.poll(); upload != null; upload = pending.poll()) {
+            try {
+                upload.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                // timed out or failed, either way we're not waiting any longer
+            }
+        }
+    }
+
+    static byte[] zip(Path dir) {
+        var bytes = new ByteArrayOutputStream();
+        try (var zip = new ZipOutputStream(bytes); var files = Files.walk(dir)) {
+            for (Path file : files.filter(p -> !p.equals(dir)).sorted().toList()) {
+                // directories too, an output may be an empty directory
+                var name = dir.relativize(file).toString().replace('\\', '/');
+                var entry = new ZipEntry(Files.isDirectory(file) ? name + "/" : name);
+                entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+                zip.putNextEntry(entry);
+                if (!entry.isDirectory()) {
+                    Files.copy(file, zip);
+                }
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static void unzip(byte[] bytes, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        try (var zip = new ZipInputStream(new ByteArrayInputStream(bytes))) {
+            for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                var file = dir.resolve(entry.getName()).normalize();
+                if (!file.startsWith(dir)) {
+                    throw new IOException("bad entry in cache blob " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    Files.createDirectories(file);
+                } else {
+                    Files.createDirectories(file.getParent());
+                    Files.copy(zip, file, StandardCopyOption.REPLACE_EXISTING);
+                    if (entry.getLastModifiedTime() != null) {
+                        Files.setLastModifiedTime(file, entry.getLastModifiedTime());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void delete(Path path) {
+        if (Files.exists(path)) {
+            try (var files = Files.walk(path)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            } catch (IOException e) {
+                // leave it for the next build
+            }
+        }
+    }
+}
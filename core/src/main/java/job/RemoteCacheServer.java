@@ -0,0 +1,92 @@
+package job;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+/*
+ * Reference server for RemoteCache, storing each blob as a file named by its key.
+ *
+ *    java -cp job.jar job.RemoteCacheServer <port> <dir>
+ *
+ * then build with -Djob.remoteCache=http://<host>:<port>/cache
+ * There is no eviction and no authentication, it is meant for tests on localhost and trusted build networks.
+ */
+public class RemoteCacheServer {
+    private static final Pattern key = Pattern.compile("[0-9a-f]{64}");
+
+    private final HttpServer server;
+    private final Path dir;
+
+    public RemoteCacheServer(int port, Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/cache/", this::handle);
+    }
+
+    public RemoteCacheServer start() {
+        server.start();
+        return this;
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            var name = exchange.getRequestURI().getPath().substring("/cache/".length());
+            if (!key.matcher(name).matches()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            var blob = dir.resolve(name);
+            switch (exchange.getRequestMethod()) {
+                case "GET" -> {
+                    if (!Files.isRegularFile(blob)) {
+                        exchange.sendResponseHeaders(404, -1);
+                    } else {
+                        exchange.sendResponseHeaders(200, Files.size(blob));
+                        try (var out = exchange.getResponseBody()) {
+                            Files.copy(blob, out);
+                        }
+                    }
+                }
+                case "PUT" -> {
+                    var temp = Files.createTempFile(dir, name, ".tmp");
+                    try (var in = exchange.getRequestBody()) {
+                        Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+                        Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(temp);
+                    }
+                    exchange.sendResponseHeaders(201, -1);
+                }
+                default -> exchange.sendResponseHeaders(405, -1);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        var server = new RemoteCacheServer(args.length > 0 ? Integer.parseInt(args[0]) : 8765,
+                Path.of(args.length > 1 ? args[1] : "job-cache")).start();
+        System.out.println("job remote cache on port " + server.port() + " storing in " + server.dir.toAbsolutePath());
+    }
+}
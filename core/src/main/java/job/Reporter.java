@@ -1,104 +1,551 @@
 package job;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Consumer;
 
+/*
+ * Build events, and where they go.
+ *
+ * Each event has a level, and a reporter only formats (and callers should only build the messages of) events at
+ * the levels it shows or records, see enabled(). Events are handed to a bounded lock-free ring which one writer
+ * thread drains to the console and, during a build, to build/events.jsonl (the levels given to jsonLines(), which
+ * need not be those the console shows), so a worker never waits on System.out.
+ * Between begin(node) and end(node) the events of a node are held back and published together, so the output
+ * of nodes building side by side doesn't interleave. With a Dashboard the writer also keeps it drawn below them.
+ */
 public class Reporter {
-    public final Consumer<String> command = System.out::println;
-    public final Consumer<String> progress = System.out::println;
-    public final Consumer<String> error = System.out::println;
-    public final Consumer<String> info = System.out::println;
-    public final Consumer<String> warning = System.out::println;
-    public final Consumer<String> note = System.out::println;
+    /*
+     * OUTPUT is what a program we run (rather than a tool we build with) writes, which the stock reporters all show
+     */
+    public enum Level {COMMAND, PROGRESS, ERROR, WARNING, NOTE, INFO, OUTPUT}
 
-    public void command(Dependency dependency, String command) {
-        if (dependency != null) {
-            this.command.accept("# " + dependency.id().projectRelativeHyphenatedName() + " command line ");
+    public record Event(long time, Level level, Dependency dependency, String message) {
+    }
+
+    /*
+     * The errors, warnings and notes reported on this thread while capturing, so the action cache can replay them.
+     * Errors and warnings are captured whatever this reporter chooses to show, replay decides that again, notes
+     * only if they are shown.
+     */
+    public record Diagnostic(String kind, String message) {
+    }
+
+    // the events of a node between begin() and end(), closed once end() has published them
+    private static final class Buffer {
+        final List<Event> events = new ArrayList<>();
+        boolean closed;
+    }
+
+    private final Set<Level> levels;
+    private final ThreadLocal<List<Diagnostic>> captured = new ThreadLocal<>();
+    private final Map<Dependency, Buffer> buffered = new ConcurrentHashMap<>();
+    private final Ring ring = new Ring(Integer.getInteger("job.reporter.ring", 4096));
+    private final AtomicLong written = new AtomicLong();
+    private volatile Thread writer;
+    private volatile Writer jsonLines;
+    private volatile Set<Level> recorded = EnumSet.noneOf(Level.class);
+    private volatile Dashboard dashboard;
+    // writer thread only
+    private int dashboardLines;
+    private String[] dashboardShown;
+    private long dashboardDrawn;
+
+    public Reporter() {
+        this(EnumSet.allOf(Level.class));
+    }
+
+    public Reporter(Set<Level> levels) {
+        this.levels = levels.isEmpty() ? EnumSet.noneOf(Level.class) : EnumSet.copyOf(levels);
+    }
+
+    public boolean enabled(Level level) {
+        return levels.contains(level) || recorded.contains(level);
+    }
+
+    /*
+     * Levels by name, comma separated, or all
+     */
+    public static Set<Level> levels(String names) {
+        if (names.trim().equalsIgnoreCase("all")) {
+            return EnumSet.allOf(Level.class);
         }
-        this.command.accept(command);
+        var levels = EnumSet.noneOf(Level.class);
+        for (String name : names.split(",")) {
+            if (!name.isBlank()) {
+                levels.add(Level.valueOf(name.trim().toUpperCase()));
+            }
+        }
+        return levels;
     }
 
-    public void progress(Dependency dependency, String command) {
-        if (dependency != null) {
-            progress.accept("# " + dependency.id().projectRelativeHyphenatedName() + " " + command);
+    public void startCapture() {
+        captured.set(new ArrayList<>());
+    }
+
+    public List<Diagnostic> endCapture() {
+        var diagnostics = captured.get();
+        captured.remove();
+        return diagnostics == null ? List.of() : diagnostics;
+    }
+
+    protected void capture(String kind, String message) {
+        var diagnostics = captured.get();
+        if (diagnostics != null) {
+            diagnostics.add(new Diagnostic(kind, message));
         }
     }
 
-    public void error(Dependency dependency, String command) {
-        if (dependency != null) {
-            error.accept("# " + dependency.id().projectRelativeHyphenatedName() + " error ");
+    public void replay(Dependency dependency, List<Diagnostic> diagnostics) {
+        for (var diagnostic : diagnostics) {
+            switch (diagnostic.kind()) {
+                case "error" -> error(dependency, diagnostic.message());
+                case "warning" -> warning(dependency, diagnostic.message());
+                default -> note(dependency, diagnostic.message());
+            }
         }
-        error.accept(command);
+    }
+
+    /*
+     * The message consumers scripts used before there were levels, each now an event of its level without a node.
+     * The methods below, which say which node a message is about, are what to use.
+     */
+    @Deprecated
+    public final Consumer<String> command = message -> command(null, message);
+    @Deprecated
+    public final Consumer<String> progress = message -> progress(null, message);
+    @Deprecated
+    public final Consumer<String> error = message -> error(null, message);
+    @Deprecated
+    public final Consumer<String> info = message -> info(null, message);
+    @Deprecated
+    public final Consumer<String> warning = message -> warning(null, message);
+    @Deprecated
+    public final Consumer<String> note = message -> note(null, message);
+
+    public void command(Dependency dependency, String command) {
+        report(Level.COMMAND, dependency, command);
+    }
+
+    public void progress(Dependency dependency, String command) {
+        report(Level.PROGRESS, dependency, command);
+    }
+
+    public void error(Dependency dependency, String command) {
+        capture("error", command);
+        report(Level.ERROR, dependency, command);
     }
 
     public void info(Dependency dependency, String command) {
-        // if (dependency != null) {
-        //     info.accept("# "+dependency.id().projectRelativeHyphenatedName+" info ");
-        //  }
-        info.accept(command);
+        report(Level.INFO, dependency, command);
+    }
+
+    public void output(Dependency dependency, String line) {
+        report(Level.OUTPUT, dependency, line);
     }
 
     public void note(Dependency dependency, String command) {
-        //  if (dependency != null) {
-        //    note.accept("# "+dependency.id().projectRelativeHyphenatedName+" note ");
-        //  }
-        note.accept(command);
+        if (levels.contains(Level.NOTE)) {
+            capture("note", command);
+        }
+        report(Level.NOTE, dependency, command);
     }
 
     public void warning(Dependency dependency, String command) {
-        //   if (dependency != null) {
-        //      warning.accept("# "+dependency.id().projectRelativeHyphenatedName+" warning ");
-        //  }
-        warning.accept(command);
+        capture("warning", command);
+        report(Level.WARNING, dependency, command);
     }
 
-    static Reporter verbose = new Reporter();
-    public static Reporter commandsAndErrors = new Reporter() {
-        @Override
-        public void warning(Dependency dependency, String command) {
+    private void report(Level level, Dependency dependency, String message) {
+        if (!enabled(level)) {
+            return;
+        }
+        var event = new Event(System.currentTimeMillis(), level, dependency, message);
+        var buffer = dependency == null ? null : buffered.get(dependency);
+        if (buffer != null) {
+            synchronized (buffer) {
+                if (!buffer.closed) {
+                    buffer.events.add(event);
+                    return;
+                }
+            }
+        }
+        // not buffered, or end() published the buffer since we looked it up
+        publish(List.of(event));
+    }
 
+    /*
+     * Holds back the events of the dependency until end(), the dag calls these around each node
+     */
+    public void begin(Dependency dependency) {
+        buffered.putIfAbsent(dependency, new Buffer());
+    }
+
+    /*
+     * The dependency has been admitted and is building (or restoring), it takes a lane of the dashboard until end()
+     */
+    public void started(Dependency dependency) {
+        var live = dashboard;
+        if (live != null) {
+            live.started(dependency);
         }
+    }
 
-        @Override
-        public void info(Dependency dependency, String command) {
+    public void end(Dependency dependency) {
+        var live = dashboard;
+        if (live != null) {
+            live.finished(dependency);
+        }
+        var buffer = buffered.remove(dependency);
+        if (buffer != null) {
+            synchronized (buffer) {
+                buffer.closed = true;
+                if (!buffer.events.isEmpty()) {
+                    publish(List.copyOf(buffer.events));
+                }
+            }
+        }
+    }
 
+    /*
+     * Also write the events at these levels, whether or not the console shows them, as json lines to path, until
+     * closeJsonLines()
+     */
+    public void jsonLines(Path path, Set<Level> levels) {
+        flush();
+        try {
+            Files.createDirectories(path.getParent());
+            jsonLines = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
+        recorded = levels.isEmpty() ? EnumSet.noneOf(Level.class) : EnumSet.copyOf(levels);
+    }
 
-        @Override
-        public void note(Dependency dependency, String command) {
+    public void closeJsonLines() {
+        recorded = EnumSet.noneOf(Level.class);
+        flush();
+        var sink = jsonLines;
+        jsonLines = null;
+        if (sink != null) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                // the console had them anyway
+            }
+        }
+    }
 
+    /*
+     * Draws the dashboard below our output until dashboard(null), which leaves its last frame on the screen
+     */
+    public void dashboard(Dashboard dashboard) {
+        // an empty batch has the writer redraw, so the frame it leaves behind is up to date
+        publish(List.of());
+        flush();
+        this.dashboard = dashboard;
+        publish(List.of());
+        flush();
+    }
+
+    /*
+     * Waits until everything reported so far has been written
+     */
+    public void flush() {
+        long target = ring.published();
+        var thread = writer;
+        // a writer which died (drain() catches what it can, not an Error) will never get there
+        while (written.get() < target && thread != null && thread.isAlive()) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(100_000);
+        }
+        if (jsonLines != null) {
+            try {
+                jsonLines.flush();
+            } catch (IOException e) {
+                // the console had them anyway
+            }
         }
+    }
 
-        @Override
-        public void progress(Dependency dependency, String command) {
+    private void publish(List<Event> events) {
+        if (writer == null) {
+            startWriter();
+        }
+        ring.put(events, writer);
+    }
 
+    private synchronized void startWriter() {
+        if (writer == null) {
+            var thread = new Thread(this::drain, "job-reporter");
+            thread.setDaemon(true);
+            thread.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "job-reporter-flush"));
+            writer = thread;
         }
+    }
 
-    };
+    private void drain() {
+        while (true) {
+            var events = ring.poll();
+            if (events == null) {
+                var live = dashboard;
+                if (live != null && System.currentTimeMillis() - dashboardDrawn > 250) {
+                    try {
+                        redraw(System.out, live);
+                    } catch (RuntimeException e) {
+                        failed(e);
+                    }
+                }
+                LockSupport.parkNanos(this, 10_000_000);
+                continue;
+            }
+            try {
+                write(events);
+            } catch (RuntimeException e) {
+                failed(e);
+            } finally {
+                // whatever happened to the batch, flush() must not wait for it forever
+                written.incrementAndGet();
+            }
+        }
+    }
 
-    public static Reporter progressAndErrors = new Reporter() {
-        @Override
-        public void warning(Dependency dependency, String command) {
+    /*
+     * A batch (or a frame) we could not write is lost, the writer carries on with the next
+     */
+    private void failed(RuntimeException e) {
+        dashboardLines = 0;
+        System.err.println("job reporter could not write " + e);
+    }
 
+    private void write(List<Event> events) {
+        // System.out when we write, not when we started, the daemon redirects it per build
+        var out = System.out;
+        var live = dashboard;
+        if (live == null && events.isEmpty()) {
+            // the dashboard has gone, its last frame stays
+            dashboardLines = 0;
+        } else if (dashboardLines > 0) {
+            // up to the top of the last frame and clear it, our output goes where it was
+            out.print("\033[" + dashboardLines + "F\033[J");
+            dashboardLines = 0;
+        }
+        var sink = jsonLines;
+        var recording = recorded;
+        for (var event : events) {
+            if (levels.contains(event.level())) {
+                console(event, out);
+            }
+            if (sink != null && recording.contains(event.level())) {
+                try {
+                    sink.write(json(event));
+                } catch (IOException e) {
+                    // the console has it
+                }
+            }
         }
+        if (live != null) {
+            redraw(out, live);
+        }
+        out.flush();
+    }
 
-        @Override
-        public void info(Dependency dependency, String command) {
+    private void redraw(PrintStream out, Dashboard live) {
+        var frame = live.draw().split("\n");
+        if (dashboardLines > 0 && dashboardLines == frame.length) {
+            // still on screen, and the same shape, so only what changed
+            out.print(repaint(dashboardShown, frame));
+        } else {
+            if (dashboardLines > 0) {
+                out.print("\033[" + dashboardLines + "F\033[J");
+            }
+            out.print(String.join("\n", frame) + "\n");
+        }
+        out.flush();
+        dashboardLines = frame.length;
+        dashboardShown = frame;
+        dashboardDrawn = System.currentTimeMillis();
+    }
 
+    /*
+     * From the line below the lines shown, the cursor moves and text which turn them into after, ending back there.
+     * For each line only the run between the first and last characters which differ is rewritten.
+     */
+    static String repaint(String[] shown, String[] after) {
+        var sb = new StringBuilder("\033[").append(shown.length).append('F');
+        int line = 0;
+        for (int i = 0; i < after.length; i++) {
+            var before = shown[i];
+            var now = after[i];
+            if (before.equals(now)) {
+                continue;
+            }
+            int first = 0;
+            while (first < before.length() && first < now.length() && before.charAt(first) == now.charAt(first)) {
+                first++;
+            }
+            int last = now.length();
+            if (before.length() == now.length()) {
+                while (last > first && before.charAt(last - 1) == now.charAt(last - 1)) {
+                    last--;
+                }
+            }
+            if (i > line) {
+                sb.append("\033[").append(i - line).append('E');
+                line = i;
+            }
+            sb.append("\033[").append(first + 1).append('G').append(now, first, last);
+            if (now.length() < before.length()) {
+                sb.append("\033[K");
+            }
         }
+        return sb.append("\033[").append(after.length - line).append('E').toString();
+    }
 
-        @Override
-        public void note(Dependency dependency, String command) {
+    /*
+     * How an event looks on the console
+     */
+    protected void console(Event event, PrintStream out) {
+        var dependency = event.dependency();
+        switch (event.level()) {
+            case COMMAND -> {
+                if (dependency != null) {
+                    out.println("# " + dependency.id().projectRelativeHyphenatedName() + " command line ");
+                }
+                out.println(event.message());
+            }
+            case PROGRESS -> out.println(dependency != null
+                    ? "# " + dependency.id().projectRelativeHyphenatedName() + " " + event.message()
+                    : event.message());
+            case ERROR -> {
+                if (dependency != null) {
+                    out.println("# " + dependency.id().projectRelativeHyphenatedName() + " error ");
+                }
+                out.println(event.message());
+            }
+            default -> out.println(event.message());
+        }
+    }
 
+    static String json(Event event) {
+        var sb = new StringBuilder("{\"time\":").append(event.time())
+                .append(",\"level\":\"").append(event.level().name().toLowerCase()).append('"');
+        if (event.dependency() != null) {
+            sb.append(",\"node\":");
+            quote(sb, event.dependency().id().fullHyphenatedName());
         }
+        sb.append(",\"message\":");
+        quote(sb, event.message());
+        return sb.append("}\n").toString();
+    }
 
-        @Override
-        public void command(Dependency dependency, String command) {
+    private static void quote(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    /*
+     * Bounded multi producer, single consumer queue (after Vyukov). A slot's sequence says whether it is free
+     * for the producer which claimed it or holds a batch for the writer, so neither side takes a lock. When
+     * the ring is full producers wait for the writer, which is the back pressure we want.
+     */
+    static final class Ring {
+        private final int mask;
+        private final AtomicReferenceArray<List<Event>> slots;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong();
+        private long head;
 
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.mask = size - 1;
+            this.slots = new AtomicReferenceArray<>(size);
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
         }
 
-        public void progress(Dependency dependency, String command) {
-            if (dependency != null) {
-                progress.accept(dependency.id().projectRelativeHyphenatedName() + ":" + command);
+        long published() {
+            return tail.get();
+        }
+
+        void put(List<Event> events, Thread writer) {
+            while (true) {
+                long t = tail.get();
+                int i = (int) (t & mask);
+                long sequence = sequences.get(i);
+                if (sequence == t) {
+                    if (tail.compareAndSet(t, t + 1)) {
+                        slots.set(i, events);
+                        sequences.set(i, t + 1);
+                        return;
+                    }
+                } else if (sequence < t) {
+                    // full
+                    LockSupport.unpark(writer);
+                    Thread.yield();
+                }
+            }
+        }
+
+        // writer thread only
+        List<Event> poll() {
+            int i = (int) (head & mask);
+            if (sequences.get(i) != head + 1) {
+                return null;
+            }
+            var events = slots.get(i);
+            slots.set(i, null);
+            sequences.set(i, head + mask + 1);
+            head++;
+            return events;
+        }
+    }
+
+    static Reporter verbose = new Reporter();
+
+    public static Reporter commandsAndErrors = new Reporter(EnumSet.of(Level.COMMAND, Level.ERROR, Level.OUTPUT));
+
+    public static Reporter progressAndErrors = new Reporter(EnumSet.of(Level.PROGRESS, Level.ERROR, Level.OUTPUT)) {
+        @Override
+        protected void console(Event event, PrintStream out) {
+            if (event.level() == Level.PROGRESS && event.dependency() != null) {
+                out.println(event.dependency().id().projectRelativeHyphenatedName() + ":" + event.message());
+            } else {
+                super.console(event, out);
             }
         }
     };
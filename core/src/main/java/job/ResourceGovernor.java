@@ -0,0 +1,344 @@
+package job;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Admission control for the actions of a build, shared between the dag's workers and the tools they fork.
+ *
+ * Every action needs a cpu slot and a reservation of the heap (in process javac and jextract) and native memory
+ * (forked cmake, make and jextract) it is expected to use, and waits, in arrival order, until all three are free.
+ * A node which can use more cpus (a native build, with --parallel, forking that many compilers) takes slots which
+ * are free when it starts, up to a fair share of them between the actions running and waiting.
+ *
+ * Estimates are learnt. While actions run a sampler attributes the growth of the live heap (as of the last GC)
+ * to them, shared between those running, and reads the resident size of the processes they forked (on Linux).
+ * The peaks of actions which built (rather than restored from the action cache) are kept, per node, in
+ * build/job.resources for the next build. Nodes we have not seen before are assumed to need -Djob.memory.defaultMB
+ * of heap.
+ *
+ * The limits adapt too. Each second the sampler sees the JVM spending more than a tenth of its time in GC, or
+ * the load average at half as much again as the cpu count, it admits one cpu fewer and (down to half) a quarter
+ * of the memory fewer, and it gives them back once things calm down, or when there is nothing left running.
+ *    -Djob.cpus=<n>                default Runtime.availableProcessors()
+ *    -Djob.memory.heapMB=<mb>      default 80% of -Xmx
+ *    -Djob.memory.nativeMB=<mb>    default 75% of physical memory
+ *    -Djob.memory.defaultMB=<mb>   default 256
+ */
+public class ResourceGovernor {
+    private static final long MB = 1024 * 1024;
+    private static final long sampleMillis = 1000;
+
+    private final int cpus;
+    private final long heapBytes;
+    private final long nativeBytes;
+    private final long defaultBytes;
+    private final Path path;
+    private final Map<String, long[]> estimates = new TreeMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final ArrayDeque<Lease> waiting = new ArrayDeque<>();
+    private final List<Lease> running = new CopyOnWriteArrayList<>();
+    private final Map<Dependency, Lease> leases = new ConcurrentHashMap<>();
+    private int cpusInUse;
+    private long heapInUse;
+    private long nativeInUse;
+    // how far we have backed off, 0 is the configured limits
+    private int pressure;
+    private boolean sampling;
+
+    public final class Lease implements AutoCloseable {
+        private final Dependency dependency;
+        private final long heap;
+        private final long nativeMemory;
+        private long heapAtStart;
+        private final List<ProcessHandle> processes = new CopyOnWriteArrayList<>();
+        private int held = 1;
+        private volatile long peakHeap;
+        private volatile long peakNative;
+        private volatile boolean restored;
+
+        private Lease(Dependency dependency, long heap, long nativeMemory) {
+            this.dependency = dependency;
+            this.heap = heap;
+            this.nativeMemory = nativeMemory;
+        }
+
+        private void observe(long liveHeap, int sharedWith) {
+            peakHeap = Math.max(peakHeap, (liveHeap - heapAtStart) / sharedWith);
+            long rss = 0;
+            for (var process : processes) {
+                rss += rss(process);
+                rss += process.descendants().mapToLong(ResourceGovernor::rss).sum();
+            }
+            peakNative = Math.max(peakNative, rss);
+        }
+
+        /*
+         * Takes up to max more cpus if they are free right now, but no more than makes a fair share of the limit
+         * between the actions running and waiting, so a native build doesn't starve the nodes queued behind it.
+         * Returns how many we got.
+         */
+        public int extraCpus(int max) {
+            lock.lock();
+            try {
+                int share = Math.max(1, cpuLimit() / Math.max(1, running.size() + waiting.size()));
+                int extra = Math.max(0, Math.min(Math.min(max, share - held), cpuLimit() - cpusInUse));
+                cpusInUse += extra;
+                held += extra;
+                return extra;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void forked(ProcessHandle process) {
+            processes.add(process);
+        }
+
+        /*
+         * The outputs came from the action cache, which tells us nothing about what building them takes
+         */
+        public void restored() {
+            restored = true;
+        }
+
+        @Override
+        public void close() {
+            observe(liveHeap(), Math.max(1, running.size()));
+            leases.remove(dependency, this);
+            lock.lock();
+            try {
+                running.remove(this);
+                cpusInUse -= held;
+                heapInUse -= heap;
+                nativeInUse -= nativeMemory;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!restored) {
+                learn(dependency, peakHeap, peakNative);
+            }
+        }
+    }
+
+    ResourceGovernor(int cpus, long heapBytes, long nativeBytes, long defaultBytes, Path path) {
+        if (cpus < 1) {
+            throw new IllegalArgumentException("cpus must be at least 1, got " + cpus);
+        }
+        this.cpus = cpus;
+        this.heapBytes = heapBytes;
+        this.nativeBytes = nativeBytes;
+        this.defaultBytes = defaultBytes;
+        this.path = path;
+        if (Files.exists(path)) {
+            var properties = new Properties();
+            try (var in = Files.newInputStream(path)) {
+                properties.load(in);
+                properties.forEach((k, v) -> {
+                    var split = ((String) v).split(" ");
+                    estimates.put((String) k, new long[]{Long.parseLong(split[0]) * MB, Long.parseLong(split[1]) * MB});
+                });
+            } catch (IOException | RuntimeException e) {
+                // we'll learn them again
+                estimates.clear();
+            }
+        }
+    }
+
+    public static ResourceGovernor of(Project project) {
+        long physical = Runtime.getRuntime().maxMemory() * 2;
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            physical = os.getTotalMemorySize();
+        }
+        return new ResourceGovernor(
+                Integer.getInteger("job.cpus", Runtime.getRuntime().availableProcessors()),
+                Long.getLong("job.memory.heapMB", Runtime.getRuntime().maxMemory() / MB * 8 / 10) * MB,
+                Long.getLong("job.memory.nativeMB", physical / MB * 3 / 4) * MB,
+                Long.getLong("job.memory.defaultMB", 256) * MB,
+                project.buildPath().resolve("job.resources"));
+    }
+
+    public int cpus() {
+        return cpus;
+    }
+
+    /*
+     * Waits until the dependency can have a cpu and the memory we expect it to use. An action bigger than the
+     * whole budget still runs, on its own.
+     */
+    public Lease admit(Dependency dependency) {
+        long[] estimate;
+        synchronized (estimates) {
+            estimate = estimates.getOrDefault(dependency.id().fullHyphenatedName(), new long[]{defaultBytes, 0});
+        }
+        var lease = new Lease(dependency, estimate[0], estimate[1]);
+        lock.lock();
+        try {
+            waiting.add(lease);
+            while (waiting.peek() != lease || !fits(lease)) {
+                changed.await();
+            }
+            waiting.remove();
+            lease.heapAtStart = liveHeap();
+            cpusInUse++;
+            heapInUse += lease.heap;
+            nativeInUse += lease.nativeMemory;
+            running.add(lease);
+            if (!sampling) {
+                sampling = true;
+                Thread.ofVirtual().name("job-governor").start(this::sample);
+            }
+            changed.signalAll();
+        } catch (InterruptedException e) {
+            waiting.remove(lease);
+            changed.signalAll();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            lock.unlock();
+        }
+        leases.put(dependency, lease);
+        return lease;
+    }
+
+    /*
+     * The lease the dependency is running under, null if it isn't
+     */
+    public Lease lease(Dependency dependency) {
+        return dependency == null ? null : leases.get(dependency);
+    }
+
+    private boolean fits(Lease lease) {
+        if (running.isEmpty()) {
+            return true;
+        }
+        long scale = 4 - Math.min(pressure, 2);
+        return cpusInUse < cpuLimit()
+                && heapInUse + lease.heap <= heapBytes / 4 * scale
+                && nativeInUse + lease.nativeMemory <= nativeBytes / 4 * scale;
+    }
+
+    private int cpuLimit() {
+        return Math.max(1, cpus - pressure);
+    }
+
+    private void sample() {
+        var os = ManagementFactory.getOperatingSystemMXBean();
+        var gcs = ManagementFactory.getGarbageCollectorMXBeans();
+        long gcBefore = gcMillis(gcs);
+        long before = System.nanoTime();
+        while (true) {
+            try {
+                Thread.sleep(sampleMillis);
+            } catch (InterruptedException e) {
+                lock.lock();
+                stopSampling();
+                lock.unlock();
+                return;
+            }
+            var now = List.copyOf(running);
+            long live = liveHeap();
+            now.forEach(lease -> lease.observe(live, now.size()));
+            long gcAfter = gcMillis(gcs);
+            long after = System.nanoTime();
+            boolean gcBound = (gcAfter - gcBefore) * 10 > TimeUnit.NANOSECONDS.toMillis(after - before);
+            boolean loaded = os.getSystemLoadAverage() > cpus * 1.5;
+            gcBefore = gcAfter;
+            before = after;
+            lock.lock();
+            try {
+                if ((gcBound || loaded) && pressure < cpus - 1) {
+                    pressure++;
+                } else if (!gcBound && !loaded && pressure > 0) {
+                    pressure--;
+                    changed.signalAll();
+                }
+                if (running.isEmpty()) {
+                    stopSampling();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /*
+     * With nothing running there is nothing to sample, the next build (in a daemon) starts from the configured limits
+     */
+    private void stopSampling() {
+        sampling = false;
+        pressure = 0;
+        changed.signalAll();
+    }
+
+    private void learn(Dependency dependency, long heap, long nativeMemory) {
+        synchronized (estimates) {
+            var name = dependency.id().fullHyphenatedName();
+            var previous = estimates.get(name);
+            // a quiet build shouldn't make us forget a busy one straight away
+            estimates.put(name, previous == null
+                    ? new long[]{heap, nativeMemory}
+                    : new long[]{Math.max(heap, (previous[0] + heap) / 2), Math.max(nativeMemory, (previous[1] + nativeMemory) / 2)});
+        }
+    }
+
+    public void save() {
+        var sb = new StringBuilder("# job resource estimates, heap and native MB\n");
+        synchronized (estimates) {
+            estimates.forEach((k, v) -> sb.append(k).append('=').append(v[0] / MB).append(' ').append(v[1] / MB).append('\n'));
+        }
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, sb.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * What the heap held after the last GC, garbage doesn't need a reservation. Before the first GC, all of it.
+     */
+    private static long liveHeap() {
+        long live = 0;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null) {
+                live += pool.getCollectionUsage().getUsed();
+            }
+        }
+        return live > 0 ? live : ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcMillis(List<GarbageCollectorMXBean> gcs) {
+        return gcs.stream().mapToLong(gc -> Math.max(0, gc.getCollectionTime())).sum();
+    }
+
+    /*
+     * Resident size from /proc/<pid>/statm (in pages), 0 where there is no /proc or the process has gone
+     */
+    private static long rss(ProcessHandle process) {
+        try {
+            var statm = Files.readString(Path.of("/proc", Long.toString(process.pid()), "statm")).trim().split(" ");
+            return Long.parseLong(statm[1]) * 4096;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package job;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Answers for Project.isAvailable(), the 'does `nvcc --version` run?' kind of question.
+ *
+ * Each probe starts on a virtual thread as soon as it is declared, so a script which asks about jextract, nvcc
+ * and clinfo waits for the slowest rather than the sum. Answers are kept in build/job.probes, keyed on the
+ * command, PATH and the path and mtime of the executable it resolves to, so a warm start spawns nothing. An
+ * executable which is not on the PATH at all is a no without spawning anything either.
+ *    -Djob.probes.ttlHours=<h>    how long an answer is trusted, default 24, 0 to always probe
+ */
+public class ToolProbes {
+    private static final ExecutorService probes = Executors.newVirtualThreadPerTaskExecutor();
+    private static final long ttlMillis = TimeUnit.HOURS.toMillis(Long.getLong("job.probes.ttlHours", 24));
+
+    private final Path path;
+    private final Properties stored = new Properties();
+
+    ToolProbes(Path path) {
+        this.path = path;
+        if (Files.exists(path)) {
+            try (var in = Files.newInputStream(path)) {
+                stored.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                // a damaged file just means we probe again
+                stored.clear();
+            }
+        }
+    }
+
+    public CompletableFuture<Boolean> probe(String... nameAndArgs) {
+        var executable = resolve(nameAndArgs[0]);
+        if (executable == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        var key = key(executable, nameAndArgs);
+        var answer = stored.getProperty(key);
+        if (answer != null && cached(answer) instanceof Boolean available) {
+            return CompletableFuture.completedFuture(available);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            boolean available = run(nameAndArgs);
+            record(key, available);
+            return available;
+        }, probes);
+    }
+
+    /*
+     * A stored "true|false<tab>millis" answer if it is still fresh, null if it is stale or we can't read it
+     */
+    private static Boolean cached(String answer) {
+        int tab = answer.indexOf('\t');
+        if (tab < 0) {
+            return null;
+        }
+        var available = answer.substring(0, tab);
+        if (!available.equals("true") && !available.equals("false")) {
+            return null;
+        }
+        try {
+            return System.currentTimeMillis() - Long.parseLong(answer.substring(tab + 1)) < ttlMillis
+                    ? Boolean.valueOf(available) : null;
+        } catch (NumberFormatException e) {
+            // a truncated line, we ask again
+            return null;
+        }
+    }
+
+    private static boolean run(String... nameAndArgs) {
+        try {
+            var process = new ProcessBuilder()
+                    .command(nameAndArgs)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectErrorStream(true)
+                    .start();
+            return process.waitFor() == 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            // We'll take that as a no then  :)
+            return false;
+        }
+    }
+
+    private synchronized void record(String key, boolean available) {
+        stored.setProperty(key, available + "\t" + System.currentTimeMillis());
+        try {
+            Files.createDirectories(path.getParent());
+            var temp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (var out = Files.newOutputStream(temp)) {
+                stored.store(out, "job tool probes");
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // we keep the answer for this run, and just ask again next time
+        }
+    }
+
+    private static String key(Path executable, String... nameAndArgs) {
+        long mtime;
+        try {
+            mtime = Files.getLastModifiedTime(executable).toMillis();
+        } catch (IOException e) {
+            mtime = -1;
+        }
+        // the PATH only as a hash, it is long and the same for every probe
+        return String.join(" ", nameAndArgs) + "|" + Integer.toHexString(String.valueOf(System.getenv("PATH")).hashCode())
+                + "|" + executable + "|" + mtime;
+    }
+
+    /*
+     * Where the ProcessBuilder would find the executable, or null if it wouldn't
+     */
+    static Path resolve(String name) {
+        if (name.contains(File.separator)) {
+            var path = Path.of(name);
+            return Files.isExecutable(path) ? path : null;
+        }
+        var pathEnv = System.getenv("PATH");
+        if (pathEnv == null) {
+            return null;
+        }
+        boolean windows = System.getProperty("os.name").startsWith("Windows");
+        for (String dir : pathEnv.split(File.pathSeparator)) {
+            if (dir.isEmpty()) {
+                continue;
+            }
+            for (String suffix : windows ? new String[]{"", ".exe", ".cmd", ".bat"} : new String[]{""}) {
+                var candidate = Path.of(dir, name + suffix);
+                if (Files.isRegularFile(candidate) && Files.isExecutable(candidate)) {
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+}
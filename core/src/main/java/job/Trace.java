@@ -0,0 +1,199 @@
+package job;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Wall clock spans for each Dag node and for the phases inside it (javac, jar, cmake configure ...).
+ *
+ * After a build we can compute the critical path through the dag and write a Chrome/Perfetto trace
+ * (load build/trace.json in https://ui.perfetto.dev or chrome://tracing).
+ */
+public class Trace {
+    public static final String NODE = "build";
+
+    public record Span(Dependency dependency, String phase, String thread, long startNanos, long endNanos) {
+        long durationNanos() {
+            return endNanos - startNanos;
+        }
+    }
+
+    /*
+     * Also a JFR job.Phase event, with whatever files and bytes the phase reports before it closes
+     */
+    public final class Phase implements AutoCloseable {
+        private final Dependency dependency;
+        private final String phase;
+        private final String thread = Thread.currentThread().getName();
+        private final long startNanos = System.nanoTime();
+        private final JobEvents.Phase event = new JobEvents.Phase();
+
+        private Phase(Dependency dependency, String phase) {
+            this.dependency = dependency;
+            this.phase = phase;
+            event.begin();
+        }
+
+        public Phase files(long files) {
+            event.files += files;
+            return this;
+        }
+
+        public Phase bytes(long bytes) {
+            event.bytes += bytes;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            spans.add(new Span(dependency, phase, thread, startNanos, System.nanoTime()));
+            if (event.shouldCommit()) {
+                event.node = JobEvents.node(dependency);
+                event.phase = phase;
+                event.commit();
+            }
+        }
+    }
+
+    private final long originNanos = System.nanoTime();
+    private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+    private final Set<Dependency> restored = ConcurrentHashMap.newKeySet();
+
+    public Phase phase(Dependency dependency, String phase) {
+        return new Phase(dependency, phase);
+    }
+
+    public List<Span> spans() {
+        return List.copyOf(spans);
+    }
+
+    /*
+     * The node's outputs came from the action cache, its node span is not the time it takes to build
+     */
+    public void restored(Dependency dependency) {
+        restored.add(dependency);
+    }
+
+    public boolean isRestored(Dependency dependency) {
+        return restored.contains(dependency);
+    }
+
+    /*
+     * The chain of node spans, in dependency order, whose summed durations bound the end-to-end build time.
+     * Nodes which were not built (not Buildable, pruned, failed before start) count as zero.
+     */
+    public List<Span> criticalPath(Dag dag) {
+        int v = dag.size();
+        Span[] nodeSpans = new Span[v];
+        spans.stream().filter(s -> s.phase().equals(NODE)).forEach(s -> {
+            int i = dag.indexOf(s.dependency());
+            if (i >= 0) {
+                nodeSpans[i] = s;
+            }
+        });
+        long[] finish = new long[v];
+        int[] predecessor = new int[v];
+        Arrays.fill(predecessor, -1);
+        int last = -1;
+        for (int n : dag.order()) {
+            long start = 0;
+            for (int dep : dag.dependencies(n)) {
+                if (finish[dep] > start) {
+                    start = finish[dep];
+                    predecessor[n] = dep;
+                }
+            }
+            finish[n] = start + (nodeSpans[n] == null ? 0 : nodeSpans[n].durationNanos());
+            if (last == -1 || finish[n] > finish[last]) {
+                last = n;
+            }
+        }
+        List<Span> path = new ArrayList<>();
+        for (int n = last; n != -1; n = predecessor[n]) {
+            if (nodeSpans[n] != null) {
+                path.addFirst(nodeSpans[n]);
+            }
+        }
+        return path;
+    }
+
+    public void report(Dag dag, Reporter reporter) {
+        var path = criticalPath(dag);
+        long total = path.stream().mapToLong(Span::durationNanos).sum();
+        path.forEach(span -> reporter.progress(span.dependency(),
+                "critical path " + span.durationNanos() / 1_000_000 + "ms of " + total / 1_000_000 + "ms"));
+    }
+
+    public void writeChromeTrace(Dag dag, Path path) {
+        var critical = criticalPath(dag);
+        Map<String, Integer> threadIds = new LinkedHashMap<>();
+        threadIds.put("critical path", 0);
+        var spanList = spans();
+        spanList.forEach(s -> threadIds.computeIfAbsent(s.thread(), _ -> threadIds.size()));
+
+        StringBuilder sb = new StringBuilder("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        var separator = new Object() {
+            boolean first = true;
+
+            StringBuilder next() {
+                if (!first) {
+                    sb.append(",");
+                }
+                first = false;
+                return sb.append("\n  ");
+            }
+        };
+        threadIds.forEach((name, tid) -> separator.next()
+                .append("{\"ph\":\"M\",\"pid\":1,\"tid\":").append(tid)
+                .append(",\"name\":\"thread_name\",\"args\":{\"name\":").append(quoted(name)).append("}}"));
+        spanList.forEach(s -> event(separator.next(), s, threadIds.get(s.thread())));
+        critical.forEach(s -> event(separator.next(), s, 0));
+        sb.append("\n]}\n");
+        try {
+            Files.createDirectories(path.getParent());
+            Files.writeString(path, sb.toString());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void event(StringBuilder sb, Span span, int tid) {
+        var name = span.dependency() == null ? "job" : span.dependency().id().projectRelativeHyphenatedName();
+        sb.append("{\"ph\":\"X\",\"pid\":1,\"tid\":").append(tid)
+                .append(",\"name\":").append(quoted(span.phase().equals(NODE) ? name : name + " " + span.phase()))
+                .append(",\"cat\":").append(quoted(span.phase()))
+                .append(",\"ts\":").append((span.startNanos() - originNanos) / 1000)
+                .append(",\"dur\":").append(span.durationNanos() / 1000)
+                .append("}");
+    }
+
+    static String quoted(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        s.chars().forEach(c -> {
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", c));
+                    } else {
+                        sb.append((char) c);
+                    }
+                }
+            }
+        });
+        return sb.append("\"").toString();
+    }
+}
@@ -0,0 +1,57 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import job.Jar;
+import job.Project;
+import job.Reporter;
+
+/*
+  java -cp build/core.jar scripts/abichain.java [length]
+
+  A chain of jars j0 → j1 → ... (default 3, a → b → c) where j0 calls into the last jar, which it only has on its
+  class path through the ones between. After a first build, the method j0 calls is renamed: the last jar's ABI
+  changes, the jars between compile against it but don't expose it, so their ABIs don't. j0 must then be rebuilt
+  (and fail to compile) rather than restored from the action cache, its key covers the ABI of every jar upstream.
+ */
+static Jar chain(Project project, int length) {
+   Jar jar = null;
+   for (int i = length - 1; i >= 0; i--) {
+      jar = jar == null ? Jar.of(project.id("j" + i)) : Jar.of(project.id("j" + i), jar);
+   }
+   return jar;
+}
+
+static void source(Path root, int i, String body) throws IOException {
+   var file = root.resolve("j" + i + "/src/main/java/j" + i + "/J" + i + ".java");
+   Files.createDirectories(file.getParent());
+   Files.writeString(file, "package j" + i + ";\npublic class J" + i + " {\n   " + body + "\n}\n");
+}
+
+void main(String[] args) throws IOException {
+   int length = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+   if (length < 3) {
+      throw new IllegalArgumentException("a chain needs at least 3 jars, got " + length);
+   }
+   int last = length - 1;
+   var root = Files.createTempDirectory("abichain");
+   source(root, 0, "public static int h() { return j" + last + ".J" + last + ".f(); }");
+   for (int i = 1; i < last; i++) {
+      source(root, i, "public static int g() { return " + i + "; }");
+   }
+   source(root, last, "public static int f() { return 1; }");
+
+   var first = new Project(root, Reporter.progressAndErrors);
+   first.build(chain(first, length));
+
+   source(root, last, "public static int f2() { return 1; }");
+   // a new Project, as the next run of a build script would have
+   var second = new Project(root, Reporter.progressAndErrors);
+   try {
+      second.build(chain(second, length));
+   } catch (RuntimeException e) {
+      System.out.println("j0 was rebuilt against the new j" + last + " and failed, as it should (" + root + ")");
+      return;
+   }
+   throw new IllegalStateException("j0 built although j" + last + ".J" + last + ".f() is gone, restored from the action cache? (" + root + ")");
+}
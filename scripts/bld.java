@@ -1,13 +1,16 @@
 import java.io.IOException;
 import java.nio.file.Path;
 
+import job.Daemon;
 import job.Jar;
 import job.Project;
 import job.Reporter;
 
 void main(String[] argArr) throws IOException, InterruptedException {
-   var project = new Project( Path.of(System.getProperty("user.dir")), Reporter.progressAndErrors);
-   Jar.of(project.id("core"));
-   project.build();
+   // pass --daemon to build through a warm background daemon, --daemon-stop to stop it
+   Daemon.run(argArr, () -> {
+      var project = new Project( Path.of(System.getProperty("user.dir")), Reporter.progressAndErrors);
+      Jar.of(project.id("core"));
+      return project;
+   }, (project, _) -> project.build());
 }
-
@@ -0,0 +1,104 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import job.Dag;
+import job.Dependency;
+import job.Project;
+import job.Reporter;
+
+/*
+  java -cp build/core.jar scripts/dagscale.java [nodes] [edgesPerNode]
+
+  Builds a random dag (default 20000 nodes, each depending on up to 4 earlier ones, one in a hundred of the last
+  tenth an unavailable Optional) and times interning it, ordering it and pruning what depends on the unavailable
+  nodes (which interns the dag that is left again), checking that every node is ordered after its dependencies.
+  All three are O(V+E), doubling the nodes should roughly double the times.
+ */
+static class Node implements Dependency {
+   final Project.Id id;
+   final Set<Dependency> dependencies = new LinkedHashSet<>();
+
+   Node(Project.Id id) {
+      this.id = id;
+   }
+
+   @Override
+   public Project.Id id() {
+      return id;
+   }
+
+   @Override
+   public Set<Dependency> dependencies() {
+      return dependencies;
+   }
+}
+
+static class Unavailable extends Node implements Dependency.Optional {
+   Unavailable(Project.Id id) {
+      super(id);
+   }
+
+   @Override
+   public boolean isAvailable() {
+      return false;
+   }
+}
+
+static void check(Dag dag) {
+   int[] position = new int[dag.size()];
+   int[] order = dag.order();
+   if (order.length != dag.size()) {
+      throw new IllegalStateException("ordered " + order.length + " of " + dag.size() + " nodes");
+   }
+   for (int i = 0; i < order.length; i++) {
+      position[order[i]] = i;
+   }
+   for (int n = 0; n < dag.size(); n++) {
+      for (int d : dag.dependencies(n)) {
+         if (position[d] >= position[n]) {
+            throw new IllegalStateException(dag.node(n).id().fullHyphenatedName() + " ordered before its dependency " + dag.node(d).id().fullHyphenatedName());
+         }
+      }
+   }
+}
+
+static double ms(long nanos) {
+   return nanos / 1_000_000.0;
+}
+
+void main(String[] args) {
+   int size = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+   int edges = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+   var project = new Project(Path.of(System.getProperty("user.dir")), Reporter.commandsAndErrors);
+   var random = new Random(42);
+   List<Node> nodes = new ArrayList<>(size);
+   for (int i = 0; i < size; i++) {
+      var id = project.id("synthetic-" + i);
+      var node = i > size * 9 / 10 && random.nextInt(100) == 0 ? new Unavailable(id) : new Node(id);
+      for (int e = 0; i > 0 && e < edges; e++) {
+         node.dependencies.add(nodes.get(random.nextInt(i)));
+      }
+      nodes.add(node);
+   }
+   // roots are the nodes nothing depends on, as a build script would name them
+   Set<Dependency> roots = new LinkedHashSet<>(nodes);
+   nodes.forEach(node -> roots.removeAll(node.dependencies));
+
+   for (int round = 0; round < 5; round++) {  // the first rounds warm up
+      long start = System.nanoTime();
+      var dag = new Dag(roots);
+      long interned = System.nanoTime();
+      dag.order();
+      long ordered = System.nanoTime();
+      var available = dag.available();
+      long pruned = System.nanoTime();
+      check(dag);
+      check(available);
+      System.out.printf("round %d  %d nodes %d roots  intern %6.1fms  order %6.1fms  available %6.1fms (%d pruned)%n",
+            round, dag.size(), roots.size(), ms(interned - start), ms(ordered - interned), ms(pruned - ordered), available.pruned().size());
+   }
+}
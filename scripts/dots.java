@@ -1,11 +1,23 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+import job.Braille;
+
+// job.Braille (which the build Dashboard draws with) started as IMG below, which stays as the baseline for --bench
+
 static String hex(int v){
    var s = Integer.toBinaryString(v);
    return "00000000".substring(s.length())+s;
 
 }
 
+// what draw() needs of a framebuffer
+interface Pixels {
+   void set(int x, int y);
+}
 
-class IMG {
+class IMG implements Pixels {
    int width;
    int height;
    byte[] bytes;
@@ -20,7 +32,7 @@ class IMG {
       this.charHeight = height/4;
       this.chars = new char[charWidth*charHeight];
    }
-   void set(int x, int y){
+   public void set(int x, int y){
       bytes[(y*width)+x]=1;//0xff;
    }
    void reset(int x, int y){
@@ -123,10 +135,25 @@ System.out.println("Modify your font on mac to Courier New - Regular - 14 v/i=81
   print("\n");
   */
 
-  IMG image = new IMG(128,128);
+  var image = new Braille(128,128);
+
+  if (args.length > 0 && args[0].equals("--bench")) {
+     bench(args.length > 1 ? Integer.parseInt(args[1]) : 200);
+     return;
+  }
 
+  // clear the screen once and draw the border, after that each frame only sends the cells which changed
+  System.out.print("\033[2J\033[H" + image);
   for (int frame =0; frame<40; frame++){
-     image.clean().home();
+     draw(image.clean()::set, frame);
+     System.out.print(image.paint(new StringBuilder(), 2, 2));
+     System.out.flush();
+     image.delay(100);
+  }
+  System.out.println("\033[" + (image.charHeight + 3) + ";1H");
+}
+
+static void draw(Pixels image, int frame){
      for (int x=0; x<20; x++){
         image.set(frame+x,x);
         image.set(frame+20-x,frame+x);
@@ -136,8 +163,71 @@ System.out.println("Modify your font on mac to Courier New - Regular - 14 v/i=81
          image.set(x+frame,y+frame);
        }
      }
-     System.out.println(image.map());
-     image.delay(100);
+}
+
+/*
+  java -cp build/core.jar scripts/dots.java --bench [iterationMs]
+
+  The 40 frames of the animation rendered three ways: IMG as it was (a byte per pixel, map() then the whole image
+  after a cursor home), Braille's whole image the same way, and Braille's paint() diffs. Measured the way JMH
+  would: warmup iterations we throw away, then measured iterations, each running as many frames as fit in
+  iterationMs, with every result handed to a blackhole so the JIT cannot drop the work. Bytes are what would go to
+  the terminal, which is usually what bounds the frame rate.
+ */
+static final int frames = 40;
+static final int warmups = 5;
+static final int iterations = 10;
+
+static final class Blackhole {
+   // a volatile write the JIT has to make, of a result it therefore has to build
+   volatile Object sink;
+
+   void consume(Object result) {
+      sink = result;
+   }
+}
+
+void bench(int iterationMs){
+  var blackhole = new Blackhole();
+  var img = new IMG(128,128);
+  var full = new Braille(128,128);
+  var diffs = new Braille(128,128);
+  diffs.paint(new StringBuilder(), 2, 2);
+  measure("IMG map", iterationMs, blackhole, frame -> {
+     draw(img.clean(), frame);
+     return "\033[0;0H\n" + img.map();
+  });
+  measure("Braille full", iterationMs, blackhole, frame -> {
+     draw(full.clean()::set, frame);
+     return "\033[0;0H\n" + full;
+  });
+  measure("Braille paint", iterationMs, blackhole, frame -> {
+     draw(diffs.clean()::set, frame);
+     return diffs.paint(new StringBuilder(), 2, 2).toString();
+  });
+}
+
+static void measure(String name, int iterationMs, Blackhole blackhole, IntFunction<String> frame){
+  long bytes = 0;
+  for (int f = 0; f < frames; f++) {
+     bytes += frame.apply(f).getBytes(StandardCharsets.UTF_8).length;
+  }
+  double[] nanosPerOp = new double[iterations];
+  int op = 0;
+  for (int iteration = -warmups; iteration < iterations; iteration++) {
+     long ops = 0;
+     long start = System.nanoTime();
+     long end = start + iterationMs * 1_000_000L;
+     long now;
+     do {
+        blackhole.consume(frame.apply(op++ % frames));
+        ops++;
+     } while ((now = System.nanoTime()) < end);
+     if (iteration >= 0) {
+        nanosPerOp[iteration] = (double) (now - start) / ops;
+     }
   }
-   
+  double mean = Arrays.stream(nanosPerOp).average().orElse(0);
+  double error = Math.sqrt(Arrays.stream(nanosPerOp).map(n -> (n - mean) * (n - mean)).sum() / (iterations - 1));
+  System.out.printf("%-14s %9.2f ± %6.2f us/frame %8d bytes/frame%n", name, mean / 1000, error / 1000, bytes / frames);
 }